@@ -0,0 +1,274 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Random;
+
+/**
+ * Generates valid VM programs of any size for scaling tests and benchmarks.
+ *
+ * The stack depth is tracked while generating, so no command pops an empty stack
+ * and every segment index is in range. Pointer is never popped: the program sets THIS
+ * and THAT to two blocks of the heap first, so every store stays in the stack, the temp,
+ * static and heap blocks, and never overwrites SP, LCL or ARG. Every program ends in an
+ * endless loop. With calls, it runs under the bootstrap code and its run time grows linearly
+ * with its size; straight-line code expects SP, LCL and ARG set by the test script, like the
+ * course's BasicTest.
+ * The same seed always gives the same program.
+ * Unless plain output is asked for, the program is sprinkled with the comment and
+ * whitespace quirks Lex has to cope with: comment lines, trailing comments, blank
+ * lines, indentation, tabs and CRLF line ends.
+ *
+ * Usage: java VMGen [-lines n] [-mix mixed|arith|pushpop|compare|call] [-seed n] [-plain] [output.vm]
+ */
+public class VMGen {
+
+    /**
+     * Command mixes, as relative weights of arithmetic, comparison, push, pop and call commands.
+     */
+    public static enum Mix {
+        MIXED(20, 5, 45, 25, 5), ARITH(60, 0, 30, 10, 0), PUSHPOP(10, 0, 50, 40, 0),
+        COMPARE(10, 40, 40, 10, 0), CALL(10, 5, 35, 20, 30);
+
+        final int arith, compare, push, pop, call;
+
+        Mix(int arith, int compare, int push, int pop, int call) {
+            this.arith = arith;
+            this.compare = compare;
+            this.push = push;
+            this.pop = pop;
+            this.call = call;
+        }
+    }
+
+    private static final String[] BINARY = {"add", "sub", "and", "or"};
+    private static final String[] UNARY = {"neg", "not"};
+    private static final String[] COMPARE = {"eq", "gt", "lt"};
+    private static final String[] SEGMENTS = {"local", "argument", "this", "that", "temp", "pointer", "static"};
+    private static final String[] POP_SEGMENTS = {"local", "argument", "this", "that", "temp", "static"};
+    private static final String[] COMMENTS = {"// generated", "//no space", "// push constant 1", "// a // b"};
+    private static final int MAX_DEPTH = 32;
+    private static final int FUNCTION_LINES = 200;
+    private static final int FUNCTION_ARGS = 3;
+    private static final int FUNCTION_LOCALS = 4;
+    // The last functions call nothing, every other function may call them
+    private static final int LEAVES = 4;
+    // THIS and THAT point here, each to a block as large as the indices of this and that
+    private static final int HEAP = 2048;
+    private static final int BLOCK = 8;
+
+    private final Random random;
+    private final Mix mix;
+    private final boolean quirks;
+    private final Appendable out;
+    private int depth;
+    private long lines;
+    private int functions;
+    private int firstLeaf;
+
+    /**
+     * @param seed the random seed
+     * @param mix the command mix
+     * @param quirks whether to add comments and whitespace quirks
+     * @param out where the program is written
+     */
+    public VMGen(long seed, Mix mix, boolean quirks, Appendable out) {
+        this.random = new Random(seed);
+        this.mix = mix;
+        this.quirks = quirks;
+        this.out = out;
+    }
+
+    /**
+     * Writes a program of about the given number of lines, quirk lines included.
+     * Straight-line code is generated unless the mix contains calls, in which
+     * case the program is a Sys.init that calls every function once, and functions
+     * that only call the last LEAVES functions, which call nothing. So the calls are
+     * never more than three deep and every function body runs a bounded number of times.
+     * @param target the number of lines to write
+     */
+    public void generate(long target) throws IOException {
+        if (mix.call == 0) {
+            setPointers();
+            while (lines < target - 2) {
+                command(false);
+            }
+            line("label END");
+            line("goto END");
+            return;
+        }
+
+        functions = (int) Math.max(1, target / FUNCTION_LINES);
+        firstLeaf = Math.max(1, functions - LEAVES);
+        line("function Sys.init 0");
+        setPointers();
+        for (int f = 0; f < firstLeaf; f++) {
+            for (int i = 0; i < FUNCTION_ARGS; i++) {
+                line("push constant " + i);
+            }
+            line("call Gen.f" + f + " " + FUNCTION_ARGS);
+            line("pop temp 0");
+        }
+        line("label END");
+        line("goto END");
+        for (int f = 0; f < functions; f++) {
+            line("function Gen.f" + f + " " + FUNCTION_LOCALS);
+            depth = 0;
+            long end = Math.min(target, lines + FUNCTION_LINES);
+            while (lines < end - 2) {
+                command(f < firstLeaf && firstLeaf < functions);
+            }
+            if (depth == 0) {
+                line("push constant 0");
+            }
+            line("return");
+        }
+    }
+
+    /**
+     * Points THIS and THAT to their heap blocks.
+     */
+    private void setPointers() throws IOException {
+        line("push constant " + HEAP);
+        line("pop pointer 0");
+        line("push constant " + (HEAP + BLOCK));
+        line("pop pointer 1");
+    }
+
+    /**
+     * Writes one random command that keeps the stack valid.
+     * @param calls whether the command may call one of the leaf functions
+     */
+    private void command(boolean calls) throws IOException {
+        int call = calls ? mix.call : 0;
+        int pick = random.nextInt(mix.arith + mix.compare + mix.push + mix.pop + call);
+
+        if (depth < 2 || (depth < MAX_DEPTH && pick < mix.push)) {
+            push();
+        } else if (depth >= MAX_DEPTH || (pick -= mix.push) < mix.pop) {
+            pop();
+        } else if ((pick -= mix.pop) < mix.arith) {
+            if (random.nextInt(4) == 0) {
+                line(UNARY[random.nextInt(UNARY.length)]);
+            } else {
+                line(BINARY[random.nextInt(BINARY.length)]);
+                depth--;
+            }
+        } else if ((pick -= mix.arith) < mix.compare) {
+            line(COMPARE[random.nextInt(COMPARE.length)]);
+            depth--;
+        } else {
+            // Arguments are already on the stack, the call replaces them with the return value
+            int callee = firstLeaf + random.nextInt(functions - firstLeaf);
+            while (depth < FUNCTION_ARGS) {
+                push();
+            }
+            line("call Gen.f" + callee + " " + FUNCTION_ARGS);
+            depth -= FUNCTION_ARGS - 1;
+        }
+    }
+
+    private void push() throws IOException {
+        if (random.nextInt(3) == 0) {
+            line("push constant " + random.nextInt(random.nextBoolean() ? 2 : 32768));
+        } else {
+            String segment = SEGMENTS[random.nextInt(SEGMENTS.length)];
+            line("push " + segment + " " + index(segment));
+        }
+        depth++;
+    }
+
+    private void pop() throws IOException {
+        String segment = POP_SEGMENTS[random.nextInt(POP_SEGMENTS.length)];
+        line("pop " + segment + " " + index(segment));
+        depth--;
+    }
+
+    private int index(String segment) {
+        switch (segment) {
+            case "temp":
+                return random.nextInt(8);
+            case "pointer":
+                return random.nextInt(2);
+            case "static":
+                return random.nextInt(16);
+            case "local":
+                return random.nextInt(FUNCTION_LOCALS);
+            case "argument":
+                return random.nextInt(FUNCTION_ARGS);
+            default:
+                return random.nextInt(BLOCK);
+        }
+    }
+
+    /**
+     * Writes one command line, possibly dressed up with quirks.
+     * @param cmd the command
+     */
+    private void line(String cmd) throws IOException {
+        String end = "\n";
+        if (quirks) {
+            int q = random.nextInt(16);
+            if (q == 0) {
+                out.append(COMMENTS[random.nextInt(COMMENTS.length)]).append(end);
+                lines++;
+            } else if (q == 1) {
+                out.append(random.nextBoolean() ? "" : " \t ").append(end);
+                lines++;
+            } else if (q == 2) {
+                cmd = "    " + cmd;
+            } else if (q == 3) {
+                cmd = "\t" + cmd + " ";
+            } else if (q == 4) {
+                cmd = cmd + " " + COMMENTS[random.nextInt(COMMENTS.length)];
+            } else if (q == 5) {
+                cmd = cmd + "//";
+            } else if (q == 6) {
+                end = "\r\n";
+            }
+        }
+        out.append(cmd).append(end);
+        lines++;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long lines = 1000;
+        Mix mix = Mix.MIXED;
+        long seed = 1;
+        boolean quirks = true;
+        String output = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-lines":
+                        lines = Long.parseLong(args[++i]);
+                        break;
+                    case "-mix":
+                        mix = Mix.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "-seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    case "-plain":
+                        quirks = false;
+                        break;
+                    default:
+                        if (args[i].startsWith("-") || output != null) {
+                            throw new IllegalArgumentException(args[i]);
+                        }
+                        output = args[i];
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Usage: java VMGen [-lines n] [-mix mixed|arith|pushpop|compare|call] [-seed n] [-plain] [output.vm]");
+            return;
+        }
+
+        try (BufferedWriter out = new BufferedWriter(output == null
+                ? new OutputStreamWriter(System.out) : new FileWriter(new File(output)), 1 << 16)) {
+            new VMGen(seed, mix, quirks, out).generate(lines);
+        }
+    }
+}
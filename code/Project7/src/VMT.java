@@ -1,15 +1,362 @@
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 
 
 public class VMT {
+
+    // Bump whenever the generated code changes. The cache also hashes the class files of VMT,
+    // so a rebuilt translator never reuses translations of an older one
+    public static final String VERSION = "8";
+
+    /**
+     * Command line options.
+     */
+    public static class Options {
+        public boolean cache;
+        public String stats;
+        public String input;
+        // Code generation, set together by the -Os, -O1 and -O2 profiles
+        public String level = "O0";
+        public boolean sharedCompare;
+        public boolean sharedPushPop;
+        public boolean inlineCall;
+        // Up to this many locals are cleared without a loop
+        public int unrollLocals = 2;
+        public boolean peephole;
+        public boolean topOfStack;
+        public boolean fuse;
+        public boolean tailCall;
+        // Dead function elimination, from Sys.init and the kept functions
+        public boolean deadCode;
+        public ArrayList<String> keep = new ArrayList<>();
+        public boolean inline;
+        public boolean intrinsics;
+        // Output: the .hack ROM image instead of assembly code, or next to it with -asm
+        public boolean hack;
+        public boolean asm;
+        // Execution counters in every function prologue, and at every label with -profile labels
+        public boolean profile;
+        public boolean profileLabels;
+        // Map from ROM addresses to the .vm lines they come from
+        public boolean sourceMap;
+
+        /**
+         * Parses the command line.
+         * @param args the command line arguments
+         * @return the options, or null if the arguments are not valid
+         */
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-cache")) {
+                    options.cache = true;
+                } else if (arg.equals("-stats") && i + 1 < args.length) {
+                    options.stats = args[++i];
+                } else if (arg.equals("-cmp") && i + 1 < args.length) {
+                    String mode = args[++i];
+                    if (!mode.equals("inline") && !mode.equals("shared")) {
+                        return null;
+                    }
+                    options.sharedCompare = mode.equals("shared");
+                } else if (arg.equals("-pushpop") && i + 1 < args.length) {
+                    String mode = args[++i];
+                    if (!mode.equals("inline") && !mode.equals("shared")) {
+                        return null;
+                    }
+                    options.sharedPushPop = mode.equals("shared");
+                } else if (arg.equals("-call") && i + 1 < args.length) {
+                    String mode = args[++i];
+                    if (!mode.equals("inline") && !mode.equals("shared")) {
+                        return null;
+                    }
+                    options.inlineCall = mode.equals("inline");
+                } else if (arg.equals("-unroll") && i + 1 < args.length) {
+                    try {
+                        options.unrollLocals = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                } else if (arg.equals("-Os") || arg.equals("-O1") || arg.equals("-O2")) {
+                    options.level(arg.substring(1));
+                } else if (arg.equals("-peephole")) {
+                    options.peephole = true;
+                } else if (arg.equals("-tos")) {
+                    options.topOfStack = true;
+                } else if (arg.equals("-fuse")) {
+                    options.fuse = true;
+                } else if (arg.equals("-tailcall")) {
+                    options.tailCall = true;
+                } else if (arg.equals("-dce")) {
+                    options.deadCode = true;
+                } else if (arg.equals("-keep") && i + 1 < args.length) {
+                    options.keep.add(args[++i]);
+                } else if (arg.equals("-inline")) {
+                    options.inline = true;
+                } else if (arg.equals("-intrinsics")) {
+                    options.intrinsics = true;
+                } else if (arg.equals("-profile") && i + 1 < args.length) {
+                    String mode = args[++i];
+                    if (!mode.equals("functions") && !mode.equals("labels")) {
+                        return null;
+                    }
+                    options.profile = true;
+                    options.profileLabels = mode.equals("labels");
+                } else if (arg.equals("-sourcemap")) {
+                    options.sourceMap = true;
+                } else if (arg.equals("-hack")) {
+                    options.hack = true;
+                } else if (arg.equals("-asm")) {
+                    options.asm = true;
+                } else if (arg.startsWith("-") || options.input != null) {
+                    return null;
+                } else {
+                    options.input = arg;
+                }
+            }
+            return options.input == null ? null : options;
+        }
+
+        /**
+         * Selects a profile of lowering strategies. Options given after it override it.
+         * Os: shared routines for comparisons and segment push/pop, which are smaller but slower.
+         * O1: inline comparisons and push/pop, with shared call and return.
+         * O2: inline call and return too, more locals cleared without a loop, the top of the
+         * stack in D and the Math intrinsics: the fastest code, and the largest. It leaves out
+         * the dead functions too, or the OS alone hardly leaves room for a program in the ROM.
+         * All three run the peephole optimizer and superinstruction fusion.
+         * @param name "Os", "O1" or "O2"
+         */
+        private void level(String name) {
+            level = name;
+            boolean size = name.equals("Os");
+            boolean speed = name.equals("O2");
+            sharedCompare = size;
+            sharedPushPop = size;
+            inlineCall = speed;
+            unrollLocals = speed ? 16 : 2;
+            topOfStack = speed;
+            intrinsics = speed;
+            deadCode = speed;
+            peephole = true;
+            fuse = true;
+        }
+
+        /**
+         * Describes every option that changes the generated code.
+         * @return the key, part of the cache key of every translation
+         */
+        public String codeKey() {
+            return "cmp=" + (sharedCompare ? "shared" : "inline") + ";pushpop=" + (sharedPushPop ? "shared" : "inline")
+                    + ";call=" + (inlineCall ? "inline" : "shared") + ";unroll=" + unrollLocals + ";peephole=" + peephole + ";tos=" + topOfStack + ";fuse=" + fuse + ";tailcall=" + tailCall + ";intrinsics=" + intrinsics + ";hack=" + hack
+                    + ";profile=" + (profileLabels ? "labels" : profile ? "functions" : "none") + ";sourcemap=" + sourceMap;
+        }
+    }
+
+    /**
+     * Keeps the translation of every .vm file in a cache directory, keyed by a hash of the
+     * translator version and class files, the code options, the file name, the functions left out and inlined,
+     * and the file content.
+     * Translations are only reused when all of those match.
+     */
+    public static class Cache {
+        private final File dir;
+        private final String codeKey;
+        private final String translatorKey;
+        private final Set<String> used = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger hits = new AtomicInteger();
+
+        /**
+         * Opens a cache directory, creating it if needed.
+         * @param dir the cache directory
+         * @param codeKey the key of the options that change the generated code
+         */
+        public Cache(File dir, String codeKey) {
+            this.dir = dir;
+            this.codeKey = codeKey;
+            this.translatorKey = translatorKey();
+            dir.mkdirs();
+        }
+
+        /**
+         * Hashes the class files of VMT and of its nested classes, which generate the code.
+         * @return the hash as a hex string, or "" if a class file cannot be read
+         */
+        private static String translatorKey() {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                ArrayDeque<Class<?>> classes = new ArrayDeque<>();
+                classes.add(VMT.class);
+                while (!classes.isEmpty()) {
+                    Class<?> c = classes.poll();
+                    try (InputStream in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class")) {
+                        if (in == null) {
+                            return "";
+                        }
+                        digest.update(c.getName().getBytes(StandardCharsets.UTF_8));
+                        digest.update(in.readAllBytes());
+                    }
+                    Collections.addAll(classes, c.getDeclaredClasses());
+                }
+                return hex(digest.digest());
+            } catch (IOException | NoSuchAlgorithmException e) {
+                return "";
+            }
+        }
+
+        /**
+         * Formats a hash.
+         * @param bytes the hash
+         * @return the hash as a hex string
+         */
+        private static String hex(byte[] bytes) {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+
+        /**
+         * Computes the cache key of a .vm file.
+         * @param vmFile the .vm file
+         * @param variant what else the translation depends on, see CallGraph.variant()
+         * @return the key as a hex string
+         */
+        public String key(File vmFile, String variant) {
+            try (FileChannel in = FileChannel.open(vmFile.toPath(), StandardOpenOption.READ)) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update((VERSION + "\0" + translatorKey + "\0" + codeKey + "\0" + vmFile.getName() + "\0" + variant + "\0").getBytes(StandardCharsets.UTF_8));
+                ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+                while (in.read(buf) > 0) {
+                    buf.flip();
+                    digest.update(buf);
+                    buf.clear();
+                }
+
+                String key = hex(digest.digest());
+                used.add(key);
+                return key;
+            } catch (IOException | NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Cannot hash " + vmFile + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Looks up a cached translation.
+         * @param key the cache key
+         * @return the translation, or null if it is not cached
+         */
+        public Fragment load(String key) {
+            File f = new File(dir, key + ".asm");
+            if (!f.isFile()) {
+                return null;
+            }
+            try {
+                // An entry is the routine mask, the source map with its length, -1 without one,
+                // and the assembly code
+                ByteBuffer entry = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+                int routines = entry.getInt();
+                int length = entry.getInt();
+                byte[] sources = length == -1 ? null : new byte[length];
+                if (sources != null) {
+                    entry.get(sources);
+                }
+                byte[] code = new byte[entry.remaining()];
+                entry.get(code);
+                hits.incrementAndGet();
+                return new Fragment(code, routines, sources);
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Stores a translation. It is written to a temporary file first,
+         * so a crash never leaves a truncated entry behind.
+         * @param key the cache key
+         * @param fragment the translation
+         */
+        public void store(String key, Fragment fragment) {
+            try {
+                File tmp = File.createTempFile(key, ".tmp", dir);
+                byte[] sources = fragment.sources == null ? new byte[0] : fragment.sources;
+                ByteBuffer entry = ByteBuffer.allocate(8 + sources.length + fragment.code.length);
+                entry.putInt(fragment.routines).putInt(fragment.sources == null ? -1 : sources.length)
+                        .put(sources).put(fragment.code);
+                Files.write(tmp.toPath(), entry.array());
+                Files.move(tmp.toPath(), new File(dir, key + ".asm").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.out.println("Cannot write cache entry: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Deletes every entry that was not used by this run: the cache directory belongs
+         * to one output file, so these are the old translations of its own inputs.
+         */
+        public void prune() {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    String name = f.getName();
+                    if (!name.endsWith(".asm") || !used.contains(name.substring(0, name.length() - 4))) {
+                        f.delete();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns how many translations were reused.
+         * @return the number of cache hits
+         */
+        public int hits() {
+            return hits.get();
+        }
+    }
+
 public static class Lex {
-    private Scanner cmds;
-    private String currentCmd;
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Inputs at least this large are memory-mapped instead of read through the buffer.
+    // Measured with generated programs: up to 64 MB both paths lex at the same speed, warm or cold,
+    // and at 128 MB mapping is about 20% faster on a cold page cache
+    public static final long MAP_THRESHOLD = 1 << 26;
+    private FileChannel in;
+    private ByteBuffer buf;
+    private char[] line;
+    private int lineLen;
+    private int lineNumber;
+    private boolean loaded;
+    private final Command cmd = new Command();
+    private final NamePool names = new NamePool();
     public static final int ARITHMETIC = 0;
     public static final int PUSH = 1;
     public static final int POP = 2;
@@ -19,46 +366,197 @@ public static class Lex {
     public static final int FUNCTION = 6;
     public static final int RETURN = 7;
     public static final int CALL = 8;
-    public static final ArrayList<String> arithmeticCmds = new ArrayList<String>();
-    private int argType;
-    private String argument1;
-    private int argument2;
 
-    static {
-        arithmeticCmds.add("add");
-        arithmeticCmds.add("sub");
-        arithmeticCmds.add("neg");
-        arithmeticCmds.add("eq");
-        arithmeticCmds.add("gt");
-        arithmeticCmds.add("lt");
-        arithmeticCmds.add("and");
-        arithmeticCmds.add("or");
-        arithmeticCmds.add("not");
+    /**
+     * VM opcodes, each tagged with the command type it belongs to.
+     */
+    public static enum Op {
+        ADD("add", ARITHMETIC), SUB("sub", ARITHMETIC), NEG("neg", ARITHMETIC),
+        EQ("eq", ARITHMETIC), GT("gt", ARITHMETIC), LT("lt", ARITHMETIC),
+        AND("and", ARITHMETIC), OR("or", ARITHMETIC), NOT("not", ARITHMETIC),
+        PUSH("push", Lex.PUSH), POP("pop", Lex.POP), LABEL("label", Lex.LABEL),
+        GOTO("goto", Lex.GOTO), IF("if-goto", Lex.IF), FUNCTION("function", Lex.FUNCTION),
+        CALL("call", Lex.CALL), RETURN("return", Lex.RETURN);
+
+        public final String mnemonic;
+        public final int type;
+
+        Op(String mnemonic, int type) {
+            this.mnemonic = mnemonic;
+            this.type = type;
+        }
+
+        /**
+         * Looks up an arithmetic opcode by its mnemonic.
+         * @param mnemonic add, sub, neg, eq, gt, lt, and, or, not
+         * @return the opcode, or null if it is not an arithmetic command
+         */
+        public static Op arithmetic(String mnemonic) {
+            for (Op op : values()) {
+                if (op.type == ARITHMETIC && op.mnemonic.equals(mnemonic)) {
+                    return op;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * VM memory segments.
+     */
+    public static enum Segment {
+        CONSTANT("constant"), LOCAL("local"), ARGUMENT("argument"), THIS("this"),
+        THAT("that"), TEMP("temp"), POINTER("pointer"), STATIC("static");
+
+        public final String name;
+
+        Segment(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Looks up a segment by its name.
+         * @param name the segment name as written in VM code
+         * @return the segment, or null if there is no such segment
+         */
+        public static Segment of(String name) {
+            for (Segment seg : values()) {
+                if (seg.name.equals(name)) {
+                    return seg;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A decoded VM command. Lex reuses one instance for every command it reads,
+     * so callers that want to keep a command must copy it.
+     */
+    public static class Command {
+        public Op op;
+        public Segment segment;
+        public int index;
+        public String name;
+        // The line of the .vm file, from 1, or 0 when not read from a file
+        public int line;
+
+        /**
+         * Copies another command into this one.
+         * @param other the command to copy
+         * @return this command
+         */
+        public Command set(Command other) {
+            op = other.op;
+            segment = other.segment;
+            index = other.index;
+            name = other.name;
+            line = other.line;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            switch (op.type) {
+                case Lex.PUSH:
+                case Lex.POP:
+                    return op.mnemonic + " " + segment.name + " " + index;
+                case Lex.FUNCTION:
+                case Lex.CALL:
+                    return op.mnemonic + " " + name + " " + index;
+                case Lex.LABEL:
+                case Lex.GOTO:
+                case Lex.IF:
+                    return op.mnemonic + " " + name;
+                default:
+                    return op.mnemonic;
+            }
+        }
+    }
+
+    /**
+     * Interns label and function names straight from the line buffer, so a name
+     * that was seen before costs a table probe and no new String.
+     */
+    static class NamePool {
+        private String[] table = new String[256];
+        private int size;
+
+        public String intern(char[] cs, int off, int len) {
+            int h = 0;
+            for (int i = 0; i < len; i++) {
+                h = 31 * h + cs[off + i];
+            }
+
+            int mask = table.length - 1;
+            int i = (h ^ (h >>> 16)) & mask;
+            while (table[i] != null) {
+                String s = table[i];
+                if (s.hashCode() == h && equals(s, cs, off, len)) {
+                    return s;
+                }
+                i = (i + 1) & mask;
+            }
+
+            String s = new String(cs, off, len);
+            table[i] = s;
+            if (++size * 2 > table.length) {
+                rehash();
+            }
+            return s;
+        }
+
+        private void rehash() {
+            String[] old = table;
+            table = new String[old.length * 2];
+            int mask = table.length - 1;
+            for (String s : old) {
+                if (s != null) {
+                    int h = s.hashCode();
+                    int i = (h ^ (h >>> 16)) & mask;
+                    while (table[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    table[i] = s;
+                }
+            }
+        }
+
+        private static boolean equals(String s, char[] cs, int off, int len) {
+            if (s.length() != len) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                if (s.charAt(i) != cs[off + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
     /**
      * Opens the input file and gets ready to parse it.
+     * The file is streamed through a fixed buffer, so only the current command is held in memory.
+     * Files of MAP_THRESHOLD bytes or more are memory-mapped and lexed straight out of the mapping.
      * @param fileIn The input file to be parsed.
      */
     public Lex(File fileIn) {
-        argType = -1;
-        argument1 = "";
-        argument2 = -1;
+        line = new char[128];
+        buf = ByteBuffer.allocate(0);
 
         try {
-            cmds = new Scanner(fileIn);
-            String preprocessed = "";
-            String line = "";
-
-            while (cmds.hasNext()) {
-                line = noComments(cmds.nextLine()).trim();
-                if (line.length() > 0) {
-                    preprocessed += line + "\n";
-                }
+            in = FileChannel.open(fileIn.toPath(), StandardOpenOption.READ);
+            long size = in.size();
+            if (size >= MAP_THRESHOLD && size <= Integer.MAX_VALUE) {
+                // The mapping stays valid after the channel is closed
+                buf = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                close();
+            } else {
+                buf = ByteBuffer.allocate(BUFFER_SIZE);
+                buf.flip();
             }
-
-            cmds = new Scanner(preprocessed.trim());
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             System.out.println("File not found!");
         }
     }
@@ -68,67 +566,35 @@ public static class Lex {
      * @return True if there are more commands, false otherwise.
      */
     public boolean hasMoreCommands() {
-        return cmds.hasNextLine();
+        if (!loaded) {
+            loaded = readCommand();
+        }
+        return loaded;
     }
 
     /**
      * Reads the next command from the input and makes it the current command.
      * Should only be called when hasMoreCommands() returns true.
+     * The command is decoded in place from the line buffer.
      */
     public void advance() {
-        currentCmd = cmds.nextLine();
-        argument1 = ""; // Initialize arg1
-        argument2 = -1; // Initialize arg2
-
-        String[] segs = currentCmd.split(" ");
-
-        if (segs.length > 3) {
-            throw new IllegalArgumentException("Too many arguments!");
+        if (!hasMoreCommands()) {
+            throw new IllegalStateException("No more commands!");
         }
+        loaded = false;
+        decode(line, lineLen, names, cmd);
+        cmd.line = lineNumber;
+    }
 
-        if (arithmeticCmds.contains(segs[0])) {
-            argType = ARITHMETIC;
-            argument1 = segs[0];
-        } else if (segs[0].equals("return")) {
-            argType = RETURN;
-            argument1 = segs[0];
-        } else {
-            argument1 = segs[1];
-
-            switch (segs[0]) {
-                case "push":
-                    argType = PUSH;
-                    break;
-                case "pop":
-                    argType = POP;
-                    break;
-                case "label":
-                    argType = LABEL;
-                    break;
-                case "if":
-                    argType = IF;
-                    break;
-                case "goto":
-                    argType = GOTO;
-                    break;
-                case "function":
-                    argType = FUNCTION;
-                    break;
-                case "call":
-                    argType = CALL;
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unknown Command Type!");
-            }
-
-            if (argType == PUSH || argType == POP || argType == FUNCTION || argType == CALL) {
-                try {
-                    argument2 = Integer.parseInt(segs[2]);
-                } catch (Exception e) {
-                    throw new IllegalArgumentException("Argument2 is not an integer!");
-                }
-            }
+    /**
+     * Returns the current command. The same instance is reused by the next advance().
+     * @return The current command.
+     */
+    public Command command() {
+        if (cmd.op == null) {
+            throw new IllegalStateException("No command!");
         }
+        return cmd;
     }
 
     /**
@@ -137,11 +603,7 @@ public static class Lex {
      * @return The type of the current command.
      */
     public int commandType() {
-        if (argType != -1) {
-            return argType;
-        } else {
-            throw new IllegalStateException("No command!");
-        }
+        return command().op.type;
     }
 
     /**
@@ -151,10 +613,16 @@ public static class Lex {
      * @return The first argument of the current command.
      */
     public String arg1() {
-        if (commandType() != RETURN) {
-            return argument1;
-        } else {
-            throw new IllegalStateException("Cannot get arg1 from a RETURN type command!");
+        switch (commandType()) {
+            case ARITHMETIC:
+                return cmd.op.mnemonic;
+            case PUSH:
+            case POP:
+                return cmd.segment.name;
+            case RETURN:
+                throw new IllegalStateException("Cannot get arg1 from a RETURN type command!");
+            default:
+                return cmd.name;
         }
     }
 
@@ -165,12 +633,250 @@ public static class Lex {
      */
     public int arg2() {
         if (commandType() == PUSH || commandType() == POP || commandType() == FUNCTION || commandType() == CALL) {
-            return argument2;
+            return cmd.index;
         } else {
             throw new IllegalStateException("Cannot get arg2!");
         }
     }
 
+    /**
+     * Decodes one cleaned command line into a command record without creating
+     * any String, except for the first sighting of a label or function name.
+     * The opcode is picked by its first letter and length and then checked
+     * character by character.
+     * @param cs the line buffer
+     * @param len the length of the line
+     * @param names the pool label and function names are interned in
+     * @param into the record to fill
+     */
+    static void decode(char[] cs, int len, NamePool names, Command into) {
+        // Split the line into at most three tokens
+        int s0 = 0;
+        int e0 = tokenEnd(cs, s0, len);
+        int s1 = tokenStart(cs, e0, len);
+        int e1 = tokenEnd(cs, s1, len);
+        int s2 = tokenStart(cs, e1, len);
+        int e2 = tokenEnd(cs, s2, len);
+        if (tokenStart(cs, e2, len) < len) {
+            throw new IllegalArgumentException("Too many arguments!");
+        }
+
+        Op op = opcode(cs, s0, e0 - s0);
+        if (op == null) {
+            throw new IllegalArgumentException("Unknown Command Type!");
+        }
+        into.op = op;
+        into.segment = null;
+        into.name = null;
+        into.index = -1;
+
+        switch (op.type) {
+            case ARITHMETIC:
+            case RETURN:
+                if (s1 < len) {
+                    throw new IllegalArgumentException("Too many arguments!");
+                }
+                return;
+            case PUSH:
+            case POP:
+                into.segment = segment(cs, s1, e1 - s1);
+                if (into.segment == null) {
+                    throw new IllegalArgumentException("Invalid segment for " + op.name() + " command");
+                }
+                into.index = number(cs, s2, e2);
+                return;
+            case FUNCTION:
+            case CALL:
+                into.name = name(cs, s1, e1, names);
+                into.index = number(cs, s2, e2);
+                return;
+            default:
+                into.name = name(cs, s1, e1, names);
+                if (s2 < len) {
+                    throw new IllegalArgumentException("Too many arguments!");
+                }
+        }
+    }
+
+    private static Op opcode(char[] cs, int off, int len) {
+        Op op;
+        switch (cs[off]) {
+            case 'a': op = (len == 3 && cs[off + 1] == 'd') ? Op.ADD : Op.AND; break;
+            case 's': op = Op.SUB; break;
+            case 'n': op = (len == 3 && cs[off + 1] == 'e') ? Op.NEG : Op.NOT; break;
+            case 'e': op = Op.EQ; break;
+            case 'g': op = (len == 2) ? Op.GT : Op.GOTO; break;
+            case 'l': op = (len == 2) ? Op.LT : Op.LABEL; break;
+            case 'o': op = Op.OR; break;
+            case 'p': op = (len == 4) ? Op.PUSH : Op.POP; break;
+            case 'i':
+                // Older code spells if-goto as just "if"
+                return matches(cs, off, len, "if") ? Op.IF : matches(cs, off, len, Op.IF.mnemonic) ? Op.IF : null;
+            case 'f': op = Op.FUNCTION; break;
+            case 'c': op = Op.CALL; break;
+            case 'r': op = Op.RETURN; break;
+            default: return null;
+        }
+        return matches(cs, off, len, op.mnemonic) ? op : null;
+    }
+
+    private static Segment segment(char[] cs, int off, int len) {
+        if (len == 0) {
+            return null;
+        }
+        Segment seg;
+        switch (cs[off]) {
+            case 'c': seg = Segment.CONSTANT; break;
+            case 'l': seg = Segment.LOCAL; break;
+            case 'a': seg = Segment.ARGUMENT; break;
+            case 't':
+                if (len == 4 && cs[off + 1] == 'h' && cs[off + 2] == 'i') {
+                    seg = Segment.THIS;
+                } else if (len == 4 && cs[off + 1] == 'h') {
+                    seg = Segment.THAT;
+                } else {
+                    seg = Segment.TEMP;
+                }
+                break;
+            case 'p': seg = Segment.POINTER; break;
+            case 's': seg = Segment.STATIC; break;
+            default: return null;
+        }
+        return matches(cs, off, len, seg.name) ? seg : null;
+    }
+
+    private static int number(char[] cs, int start, int end) {
+        if (start >= end) {
+            throw new IllegalArgumentException("Argument2 is not an integer!");
+        }
+        boolean negative = cs[start] == '-';
+        if (negative || cs[start] == '+') {
+            start++;
+        }
+        if (start >= end) {
+            throw new IllegalArgumentException("Argument2 is not an integer!");
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = cs[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit) / 10) {
+                throw new IllegalArgumentException("Argument2 is not an integer!");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private static String name(char[] cs, int start, int end, NamePool names) {
+        if (start >= end) {
+            throw new IllegalArgumentException("Missing argument!");
+        }
+        return names.intern(cs, start, end - start);
+    }
+
+    private static boolean matches(char[] cs, int off, int len, String word) {
+        if (len != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (cs[off + i] != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int tokenStart(char[] cs, int i, int len) {
+        while (i < len && cs[i] <= ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int tokenEnd(char[] cs, int i, int len) {
+        while (i < len && cs[i] > ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Reads the next non-empty line into the line buffer, dropping comments
+     * and leading/trailing whitespace on the way, the same way noComments() and trim() do.
+     * @return True if a command was read, false at the end of the input.
+     */
+    private boolean readCommand() {
+        int c;
+        do {
+            lineLen = 0;
+            lineNumber++;
+            boolean comment = false;
+
+            while ((c = read()) != -1 && c != '\n') {
+                if (comment || (lineLen == 0 && c <= ' ')) {
+                    continue;
+                }
+                if (c == '/' && lineLen > 0 && line[lineLen - 1] == '/') {
+                    // Second slash of "//", the rest of the line is a comment
+                    lineLen--;
+                    comment = true;
+                    continue;
+                }
+                if (lineLen == line.length) {
+                    line = Arrays.copyOf(line, lineLen * 2);
+                }
+                line[lineLen++] = (char) c;
+            }
+
+            while (lineLen > 0 && line[lineLen - 1] <= ' ') {
+                lineLen--;
+            }
+        } while (lineLen == 0 && c != -1);
+
+        if (lineLen == 0) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next byte of the input, refilling the buffer when it runs out.
+     * @return The next byte, or -1 at the end of the input.
+     */
+    private int read() {
+        if (!buf.hasRemaining()) {
+            if (in == null) {
+                return -1;
+            }
+            try {
+                buf.clear();
+                int n = in.read(buf);
+                buf.flip();
+                if (n <= 0) {
+                    return -1;
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read input: " + e.getMessage());
+            }
+        }
+        return buf.get() & 0xFF;
+    }
+
+    /**
+     * Releases the input file.
+     */
+    private void close() {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            in = null;
+        }
+    }
+
     /**
      * Removes comments (text after "//") from a string.
      * @param strIn The input string.
@@ -216,236 +922,4594 @@ public static class Lex {
 }
 public static class Writer {
 
+    /**
+     * Routines shared by the whole program. The code of every file jumps to them
+     * and they are written once, after the code of the last file.
+     */
+    public static enum Routine {
+        EQ(compareRoutine("EQ", "JEQ")), GT(compareRoutine("GT", "JGT")), LT(compareRoutine("LT", "JLT")),
+        CALL(callRoutine()), RETURN(returnRoutine()), TAIL(tailRoutine()),
+        MULTIPLY(multiplyRoutine()), DIVIDE(divideRoutine()),
+        PUSH_LOCAL(pushRoutine("LCL")), PUSH_ARGUMENT(pushRoutine("ARG")),
+        PUSH_THIS(pushRoutine("THIS")), PUSH_THAT(pushRoutine("THAT")),
+        POP_LOCAL(popRoutine("LCL")), POP_ARGUMENT(popRoutine("ARG")),
+        POP_THIS(popRoutine("THIS")), POP_THAT(popRoutine("THAT"));
+
+        final Asm.Template code;
+        // The jump to the routine, with the return address in D
+        final Asm.Template call;
+
+        Routine(String code) {
+            this.code = new Asm.Template(code);
+            this.call = new Asm.Template("D=A\n@" + code.substring(1, code.indexOf(')')) + "\n0;JMP\n");
+        }
+
+        public int bit() {
+            return 1 << ordinal();
+        }
+    }
+
+    private static final int OUT_BUFFER_SIZE = 1 << 20;
+    private static final int FRAGMENT_BUFFER_SIZE = 1 << 16;
+
+    // Fixed parts of the templates, encoded once
+    private static final Asm.Template BINARY_ADD = new Asm.Template("@SP\nAM=M-1\nD=M\nA=A-1\nM=D+M\n");
+    private static final Asm.Template BINARY_SUB = new Asm.Template("@SP\nAM=M-1\nD=M\nA=A-1\nM=M-D\n");
+    private static final Asm.Template BINARY_AND = new Asm.Template("@SP\nAM=M-1\nD=M\nA=A-1\nM=D&M\n");
+    private static final Asm.Template BINARY_OR = new Asm.Template("@SP\nAM=M-1\nD=M\nA=A-1\nM=D|M\n");
+    private static final Asm.Template UNARY_NOT = new Asm.Template("@SP\nA=M-1\nM=!M\n");
+    private static final Asm.Template UNARY_NEG = new Asm.Template("D=0\n@SP\nA=M-1\nM=D-M\n");
+    private static final Asm.Template COMPARE_HEAD = new Asm.Template("@SP\nAM=M-1\nD=M\nA=A-1\nD=M-D\n");
+    private static final Asm.Template COMPARE_JLE = new Asm.Template("D;JLE\n@SP\nA=M-1\nM=-1\n");
+    private static final Asm.Template COMPARE_JGE = new Asm.Template("D;JGE\n@SP\nA=M-1\nM=-1\n");
+    private static final Asm.Template COMPARE_JNE = new Asm.Template("D;JNE\n@SP\nA=M-1\nM=-1\n");
+    private static final Asm.Template JUMP = new Asm.Template("0;JMP\n");
+    private static final Asm.Template JUMP_GT = new Asm.Template("D;JGT\n");
+    private static final Asm.Template JUMP_GE = new Asm.Template("D;JGE\n");
+    private static final Asm.Template JUMP_LT = new Asm.Template("D;JLT\n");
+    private static final Asm.Template JUMP_LE = new Asm.Template("D;JLE\n");
+    private static final Asm.Template JUMP_EQ = new Asm.Template("D;JEQ\n");
+    private static final Asm.Template JUMP_NE = new Asm.Template("D;JNE\n");
+    private static final Asm.Template SET_FALSE = new Asm.Template("@SP\nA=M-1\nM=0\n");
+    private static final Asm.Template HALT = new Asm.Template("($END)\n@$END\n0;JMP\n");
+    private static final Asm.Template LOAD_VALUE = new Asm.Template("D=A\n");
+    private static final Asm.Template LOAD_MEMORY = new Asm.Template("D=M\n");
+    private static final Asm.Template LOAD_LCL = new Asm.Template("@LCL\nD=M\n");
+    private static final Asm.Template LOAD_ARG = new Asm.Template("@ARG\nD=M\n");
+    private static final Asm.Template LOAD_THIS = new Asm.Template("@THIS\nD=M\n");
+    private static final Asm.Template LOAD_THAT = new Asm.Template("@THAT\nD=M\n");
+    private static final Asm.Template OFFSET_LOAD = new Asm.Template("A=D+A\nD=M\n");
+    private static final Asm.Template OFFSET_ADDRESS = new Asm.Template("D=D+A\n");
+    private static final Asm.Template PUSH_D = new Asm.Template("@SP\nA=M\nM=D\n@SP\nM=M+1\n");
+    private static final Asm.Template POP_TO_R13 = new Asm.Template("@R13\nM=D\n@SP\nAM=M-1\nD=M\n@R13\nA=M\nM=D\n");
+    // Templates of the top-of-stack mode, where D may hold the top of the stack
+    private static final Asm.Template POP_D = new Asm.Template("@SP\nAM=M-1\nD=M\n");
+    private static final Asm.Template TOS_ADD = new Asm.Template("@SP\nAM=M-1\nD=D+M\n");
+    private static final Asm.Template TOS_SUB = new Asm.Template("@SP\nAM=M-1\nD=M-D\n");
+    private static final Asm.Template TOS_AND = new Asm.Template("@SP\nAM=M-1\nD=D&M\n");
+    private static final Asm.Template TOS_OR = new Asm.Template("@SP\nAM=M-1\nD=D|M\n");
+    private static final Asm.Template TOS_NOT = new Asm.Template("D=!D\n");
+    private static final Asm.Template TOS_NEG = new Asm.Template("D=-D\n");
+    private static final Asm.Template TOS_JGT = new Asm.Template("D;JGT\nD=0\n");
+    private static final Asm.Template TOS_JLT = new Asm.Template("D;JLT\nD=0\n");
+    private static final Asm.Template TOS_JEQ = new Asm.Template("D;JEQ\nD=0\n");
+    private static final Asm.Template SET_TRUE = new Asm.Template("D=-1\n");
+    private static final Asm.Template BASE_LCL = new Asm.Template("@LCL\nA=M\n");
+    private static final Asm.Template BASE_ARG = new Asm.Template("@ARG\nA=M\n");
+    private static final Asm.Template BASE_THIS = new Asm.Template("@THIS\nA=M\n");
+    private static final Asm.Template BASE_THAT = new Asm.Template("@THAT\nA=M\n");
+    private static final Asm.Template NEXT_ADDRESS = new Asm.Template("A=A+1\n");
+    private static final Asm.Template OFFSET = new Asm.Template("A=D+A\n");
+    private static final Asm.Template STORE_D = new Asm.Template("M=D\n");
+    private static final Asm.Template STORE_THIS = new Asm.Template("@THIS\nM=D\n");
+    private static final Asm.Template STORE_THAT = new Asm.Template("@THAT\nM=D\n");
+    private static final Asm.Template SAVE_D = new Asm.Template("@R13\nM=D\n");
+    // R13 holds the value and D the address: leaves the value in D and the address in A
+    private static final Asm.Template SWAP_R13 = new Asm.Template("@R13\nM=D+M\nD=M-D\nA=M-D\nM=D\n");
+    // Up to this offset, walking A from the base is no longer than adding the offset
+    private static final int LOAD_WALK = 2;
+    // Up to this offset, walking A from the base is shorter than going through R13
+    private static final int STORE_WALK = 8;
+    private static final byte[] FALSE = bytes("FALSE");
+    private static final byte[] TRUE = bytes("TRUE");
+    private static final byte[] CONTINUE = bytes("CONTINUE");
+    private static final byte[] RETURN = bytes("RET");
+    private static final byte[] INIT = bytes("INIT");
+    private static final byte[] COUNTED = bytes("COUNTED");
+    private static final Asm.Template BOOTSTRAP = new Asm.Template("@256\nD=A\n@SP\nM=D\n");
+    private static final Asm.Template NO_ARGS = new Asm.Template("@R13\nM=0\n");
+    private static final Asm.Template ONE_ARG = new Asm.Template("@R13\nM=1\n");
+    private static final Asm.Template SET_TARGET = new Asm.Template("D=A\n@R14\nM=D\n");
+    private static final Asm.Template RETURN_STACK = new Asm.Template("@$RETURN\n0;JMP\n");
+    private static final Asm.Template RETURN_D = new Asm.Template("@$RETURN.D\n0;JMP\n");
+    private static final Asm.Template TAIL_CALL = new Asm.Template("@$TAIL\n0;JMP\n");
+    // Intrinsics of Math.multiply and Math.divide
+    private static final String MULTIPLY = "Math.multiply";
+    private static final String DIVIDE = "Math.divide";
+    private static final Asm.Template LOAD_TOP = new Asm.Template("@SP\nA=M-1\nD=M\n");
+    private static final Asm.Template DOUBLE = new Asm.Template("MD=D+M\n");
+    private static final Asm.Template DOUBLE_R13 = new Asm.Template("@R13\nD=M\nMD=D+M\n");
+    private static final Asm.Template ADD_D_TO_TOP = new Asm.Template("@SP\nA=M-1\nM=D+M\n");
+    // Up to this many bits set in a constant, multiplying by it is written out at the call site
+    private static final int MULTIPLY_BITS = 4;
+    private static final Asm.Template PUSH_ONE = new Asm.Template("@SP\nA=M\nM=1\n@SP\nM=M+1\n");
+    private static final Asm.Template PUSH_TRUE = new Asm.Template("@SP\nA=M\nM=-1\n@SP\nM=M+1\n");
+    private static final Asm.Template D_ZERO = new Asm.Template("D=0\n");
+    private static final Asm.Template D_ONE = new Asm.Template("D=1\n");
+    private static final Asm.Template D_TRUE = new Asm.Template("D=-1\n");
+    private static final Asm.Template LOAD_NEGATED = new Asm.Template("D=-A\n");
+    private static final Asm.Template LOAD_COMPLEMENT = new Asm.Template("D=!A\n");
+    private static final Asm.Template INC_TOP = new Asm.Template("@SP\nA=M-1\nM=M+1\n");
+    private static final Asm.Template DEC_TOP = new Asm.Template("@SP\nA=M-1\nM=M-1\n");
+    private static final Asm.Template ADD_TOP = new Asm.Template("D=A\n@SP\nA=M-1\nM=D+M\n");
+    private static final Asm.Template SUB_TOP = new Asm.Template("D=A\n@SP\nA=M-1\nM=M-D\n");
+    private static final Asm.Template D_INC = new Asm.Template("D=D+1\n");
+    private static final Asm.Template D_DEC = new Asm.Template("D=D-1\n");
+    private static final Asm.Template D_ADD_A = new Asm.Template("D=D+A\n");
+    private static final Asm.Template D_SUB_A = new Asm.Template("D=D-A\n");
+    private static final Asm.Template PUSH_ZERO = new Asm.Template("@SP\nA=M\nM=0\n@SP\nM=M+1\n");
+    private static final Asm.Template ZEROS_HEAD = new Asm.Template("@SP\nA=M\nM=0\n");
+    private static final Asm.Template NEXT_ZERO = new Asm.Template("A=A+1\nM=0\n");
+    private static final Asm.Template ZEROS_TAIL = new Asm.Template("D=A+1\n@SP\nM=D\n");
+    private static final Asm.Template ZEROS_LOOP = new Asm.Template("@SP\nAM=M+1\nA=A-1\nM=0\n");
+    private static final Asm.Template LOOP_BACK = new Asm.Template("D=D-1;JGT\n");
+    // Templates of the superinstructions written for the fused command sequences
+    private static final Asm.Template AT_THIS = new Asm.Template("@THIS\n");
+    private static final Asm.Template AT_THAT = new Asm.Template("@THAT\n");
+    private static final Asm.Template INC_MEMORY = new Asm.Template("M=M+1\n");
+    private static final Asm.Template DEC_MEMORY = new Asm.Template("M=M-1\n");
+    private static final Asm.Template ADD_MEMORY = new Asm.Template("M=D+M\n");
+    private static final Asm.Template SUB_MEMORY = new Asm.Template("M=M-D\n");
+    private static final Asm.Template STORE_ZERO = new Asm.Template("M=0\n");
+    private static final Asm.Template STORE_ONE = new Asm.Template("M=1\n");
+    private static final Asm.Template D_ADD_M = new Asm.Template("D=D+M\n");
+    private static final Asm.Template D_ADD_R13 = new Asm.Template("@R13\nD=D+M\n");
+    private static final Asm.Template BASE_R13 = new Asm.Template("@R13\nA=M\n");
+    private static final Asm.Template LOAD_THROUGH_THAT = new Asm.Template("@THAT\nM=D\nA=D\nD=M\n");
+    private static final Asm.Template COUNT_LOW = new Asm.Template("M=M+1\nD=M\n");
+    // Inline call and return, the code of the shared routines written at the call site
+    private static final Asm.Template CALL_FRAME = new Asm.Template(
+            "@SP\nA=M\nM=D\n@LCL\nD=M\n@SP\nAM=M+1\nM=D\n@ARG\nD=M\n@SP\nAM=M+1\nM=D\n"
+            + "@THIS\nD=M\n@SP\nAM=M+1\nM=D\n@THAT\nD=M\n@SP\nAM=M+1\nM=D\n@SP\nMD=M+1\n@LCL\nM=D\n");
+    private static final Asm.Template SET_ARG = new Asm.Template("D=D-A\n@ARG\nM=D\n");
+    private static final Asm.Template RETURN_INLINE = new Asm.Template(
+            returnRoutine().replace("($RETURN)\n", "").replace("($RETURN.D)\n", ""));
+    private static final Asm.Template RETURN_INLINE_D = new Asm.Template(
+            returnRoutine().substring(returnRoutine().indexOf("($RETURN.D)\n") + "($RETURN.D)\n".length()));
+    private static final byte[] AT = bytes("@");
+    private static final byte[] LABEL_START = bytes("(");
+    private static final byte[] LABEL_END = bytes(")\n");
+    private static final byte[] NEWLINE = bytes("\n");
+
+    private final Options options;
+    private int routines;
+    private boolean routinesWritten;
     private int arthJumpFlag;
-    private PrintWriter outPrinter;
+    private byte[] labelPrefix = new byte[0];
+    private byte[] staticPrefix = new byte[0];
+    // Top-of-stack mode: the logical top of the stack is in D, not in memory
+    private boolean topInD;
+    // A comparison held back to be fused with an if-goto, maybe with a not in between
+    private Lex.Op pendingCompare;
+    private boolean pendingNot;
+    // A pushed constant held back to be folded into the next command
+    private boolean pendingConstant;
+    private int constant;
+    // A call held back, it becomes a tail call if a return follows
+    private String pendingCall;
+    private int pendingArgs;
+    // The statistics, and the kind of command the code written now is charged to. Code held
+    // back is charged to the command that held it, whichever command makes it written
+    private Stats stats;
+    private int owner = -1;
+    private long ownerStart;
+    private int pendingOwner = -1;
+    private int notOwner = -1;
+    private int topOwner = -1;
+    // The function being translated, which VM labels are local to
+    private String function;
+    private boolean counting;
+    private long lines;
+    private long labels;
+    // Instructions in the output, after optimization
+    private long words;
+    // Instructions written past the peephole optimizer by bypass()
+    private long bypassed;
+    private long bypassStart;
+    private long flushed;
+    private WritableByteChannel outChannel;
+    private final ByteBuffer out;
+    // Instruction IR path, only used when an optimization or the assembler needs it
+    private Asm.Sink sink;
+    private Asm.Sink output;
+    private Asm.Symbols symbols;
+    private Peephole peephole;
+    // Integrated assembler, and the ROM image it writes, or null when it writes an object fragment
+    private Assembler assembler;
+    private File hackOut;
+    // Execution counters, or null
+    private Profile profile;
+    // Source map, between the optimizer and the output, and the .vm file being translated
+    private SourceMap sources;
+    private String sourceFile;
+    private int sourceLine;
+    private int sourceMark = SourceMap.NONE;
+    // Superinstruction fusion, fed by translate() rather than by the write methods
+    private Fusion fusion;
+    private final Asm.Sink printer = new Asm.Sink() {
+        public void add(int ins) {
+            print(ins);
+        }
+    };
+    private final Asm.Sink listing = new Asm.Sink() {
+        public void add(int ins) {
+            print(ins);
+            assembler.add(ins);
+        }
+    };
 
     /**
      * Open an output file and be ready to write content.
+     * Output is collected in a direct buffer and flushed to the file channel when it fills up.
      * @param fileOut can be a directory!
      */
     public Writer(File fileOut) {
+        this(fileOut, new Options());
+    }
+
+    /**
+     * Open an output file and be ready to write content.
+     * With -hack the ROM image is written on close() to the file of the same name with
+     * the .hack extension, and the assembly code is only written with -asm.
+     * @param fileOut the output file
+     * @param options the code generation options
+     */
+    public Writer(File fileOut, Options options) {
+        this.options = options;
+        out = ByteBuffer.allocateDirect(OUT_BUFFER_SIZE);
         try {
-            outPrinter = new PrintWriter(fileOut);
+            if (!options.hack || options.asm) {
+                outChannel = FileChannel.open(fileOut.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
             arthJumpFlag = 0;
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
+        if (options.hack) {
+            hackOut = romFile(fileOut);
+        }
+        initSink();
     }
 
     /**
-     * Inform the CodeWriter that the translation of a new VM file is started.
-     * @param fileOut the file to be processed
+     * Returns the ROM image file that goes with an assembly file.
+     * @param asmFile the assembly file
+     * @return the file with the .hack extension
      */
-    public void setFileName(File fileOut) {
-        // Implementation can be added if needed
+    public static File romFile(File asmFile) {
+        return withExtension(asmFile, ".hack");
     }
 
     /**
-     * Write the assembly code that is the translation of the given arithmetic command.
-     * @param command the arithmetic command to translate
+     * Write into an arbitrary channel, e.g. an in-memory buffer holding one file's translation.
+     * @param channel the channel that receives the assembly code
      */
-    public void writeArithmetic(String command) {
-        switch (command) {
-            case "add":
-                outPrinter.print(arithmeticTemplate1() + "M=D+M\n");
-                break;
-            case "sub":
-                outPrinter.print(arithmeticTemplate1() + "M=M-D\n");
-                break;
-            case "and":
-                outPrinter.print(arithmeticTemplate1() + "M=D&M\n");
-                break;
-            case "or":
-                outPrinter.print(arithmeticTemplate1() + "M=D|M\n");
-                break;
-            case "gt":
-                outPrinter.print(arithmeticTemplate2("JLE")); // not <=
-                arthJumpFlag++;
-                break;
-            case "lt":
-                outPrinter.print(arithmeticTemplate2("JGE")); // not >=
-                arthJumpFlag++;
-                break;
-            case "eq":
-                outPrinter.print(arithmeticTemplate2("JNE")); // not <>
-                arthJumpFlag++;
-                break;
-            case "not":
-                outPrinter.print("@SP\nA=M-1\nM=!M\n");
-                break;
-            case "neg":
-                outPrinter.print("D=0\n@SP\nA=M-1\nM=D-M\n");
-                break;
-            default:
-                throw new IllegalArgumentException("Call writeArithmetic() for a non-arithmetic command");
-        }
+    public Writer(WritableByteChannel channel) {
+        this(channel, new Options());
     }
 
     /**
-     * Write the assembly code that is the translation of the given command,
-     * where the command is either PUSH or POP.
-     * @param command PUSH or POP
-     * @param segment the memory segment
-     * @param index the index in the segment
+     * Write into an arbitrary channel, e.g. an in-memory buffer holding one file's translation.
+     * With -hack the channel receives the object code of the assembler instead, see append().
+     * @param channel the channel that receives the assembly code
+     * @param options the code generation options
      */
-    public void writePushPop(int command, String segment, int index) {
-        if (command == Lex.PUSH) {
-            switch (segment) {
-                case "constant":
-                    outPrinter.print("@" + index + "\nD=A\n@SP\nA=M\nM=D\n@SP\nM=M+1\n");
-                    break;
-                case "local":
-                    outPrinter.print(pushTemplate1("LCL", index, false));
+    public Writer(WritableByteChannel channel, Options options) {
+        this.options = options;
+        out = ByteBuffer.allocate(FRAGMENT_BUFFER_SIZE);
+        outChannel = channel;
+        arthJumpFlag = 0;
+        initSink();
+    }
+
+    /**
+     * Routes the code through the instruction IR when an optimization or the assembler
+     * is enabled. Otherwise templates go straight into the output buffer as text.
+     */
+    private void initSink() {
+        if (options.peephole || options.hack || options.sourceMap) {
+            symbols = new Asm.Symbols(Asm.BUILTIN);
+            output = printer;
+        }
+        if (options.hack) {
+            assembler = new Assembler(symbols);
+            output = hackOut != null && options.asm ? listing : assembler;
+        }
+        if (options.sourceMap) {
+            sources = new SourceMap(output);
+            output = sources;
+        }
+        sink = output;
+        if (options.peephole) {
+            peephole = new Peephole(output);
+            sink = peephole;
+            if (sources != null) {
+                peephole.setSourceMap(sources);
+            }
+        }
+        if (options.fuse) {
+            fusion = new Fusion(this);
+        }
+    }
+
+    /**
+     * Counts the executions of every function, and of every label with -profile labels.
+     * @param profile the counters
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Inform the CodeWriter that the translation of a new VM file is started.
+     * Labels generated from now on are prefixed with the file name and
+     * numbered from zero, so every file translates the same way on its own.
+     * @param fileOut the file to be processed
+     */
+    public void setFileName(File fileOut) {
+        String name = fileOut.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot != -1) {
+            name = name.substring(0, dot);
+        }
+        labelPrefix = bytes(name + "$");
+        staticPrefix = bytes(name + ".");
+        arthJumpFlag = 0;
+        function = null;
+        sourceFile = fileOut.getName();
+    }
+
+    /**
+     * Tells which line of the .vm file the code written next comes from, for the source map.
+     * The code of a command held back to be folded into the next one goes to the next one.
+     * @param line the line number
+     */
+    public void setLine(int line) {
+        if (sources == null) {
+            return;
+        }
+        sourceLine = line;
+        int mark = sources.mark(sourceFile, line, function);
+        sourceMark = mark;
+        if (peephole != null) {
+            peephole.tag(mark);
+        } else {
+            sources.at(mark);
+        }
+    }
+
+    /**
+     * Write the bootstrap code: set SP to 256 and call Sys.init.
+     * It has to come first in the output. Its labels, like those of the shared routines,
+     * start with $: no VM symbol does, and every file prefix has the file name before it.
+     */
+    public void writeInit() {
+        byte[] prefix = labelPrefix;
+        labelPrefix = bytes("$");
+        put(BOOTSTRAP);
+        call("Sys.init", 0);
+        labelPrefix = prefix;
+    }
+
+    /**
+     * Inform the CodeWriter that the translation of a VM file is done.
+     * The optimizer writes out the code it still holds, so no optimization looks across
+     * two files and every file translates the same way on its own.
+     */
+    public void endFile() {
+        if (fusion != null) {
+            fusion.flush();
+        }
+        flushPending();
+        spill();
+        if (peephole != null) {
+            peephole.flush();
+            symbols.clear();
+        }
+    }
+
+    /**
+     * Start counting the instructions and labels written, for the statistics report.
+     */
+    public void enableCounting() {
+        counting = true;
+    }
+
+    /**
+     * Charges the instructions written per kind of command to the statistics of a file.
+     * @param stats the statistics, or null to stop charging
+     */
+    public void setStats(Stats stats) {
+        charge(-1);
+        this.stats = stats;
+    }
+
+    /**
+     * Charges the instructions written from now on to one kind of command.
+     * Code that fuses several commands is charged to one of them.
+     * @param kind the kind, see Stats.kind(), or -1 for code of no command
+     */
+    public void charge(int kind) {
+        if (stats != null && owner >= 0) {
+            stats.instructions[owner] += instructions() - ownerStart;
+        }
+        owner = kind;
+        ownerStart = instructions();
+    }
+
+    /**
+     * Returns the number of Hack instructions written so far, before any optimization.
+     * Only counted after enableCounting().
+     * @return the number of instructions, labels excluded
+     */
+    public long instructions() {
+        return lines - labels;
+    }
+
+    /**
+     * Returns the number of instructions in the output so far, i.e. the words of ROM the
+     * program takes, after optimization and including the fragments appended.
+     * @return the number of instructions
+     */
+    public long romWords() {
+        return assembler != null ? assembler.words() : words;
+    }
+
+    /**
+     * Tells whether the program fits in the ROM of the Hack computer.
+     * @return true if the output takes at most Assembler.ROM_SIZE words
+     */
+    public boolean fitsRom() {
+        return romWords() <= Assembler.ROM_SIZE;
+    }
+
+    /**
+     * Returns the number of labels written so far. Only counted after enableCounting().
+     * @return the number of labels
+     */
+    public long labels() {
+        return labels;
+    }
+
+    /**
+     * Returns the number of instructions written since the peephole optimizer was enabled,
+     * after optimization: those it let out, and those written past it.
+     * @return the number of instructions, 0 without the optimizer
+     */
+    public long optimizedInstructions() {
+        return peephole == null ? 0 : peephole.out() + bypassed;
+    }
+
+    /**
+     * Returns the peephole optimizer of this writer.
+     * @return the optimizer, or null when it is not enabled
+     */
+    public Peephole peephole() {
+        return peephole;
+    }
+
+    /**
+     * Returns the integrated assembler of this writer.
+     * @return the assembler, or null without -hack
+     */
+    public Assembler assembler() {
+        return assembler;
+    }
+
+    /**
+     * Returns the source map of this writer.
+     * @return the source map, or null without -sourcemap
+     */
+    public SourceMap sourceMap() {
+        return sources;
+    }
+
+    /**
+     * Returns the superinstruction fusion of this writer. Commands handed to it reach
+     * the write methods of this writer, fused or one by one.
+     * @return the fusion, or null when it is not enabled
+     */
+    public Fusion fusion() {
+        return fusion;
+    }
+
+    /**
+     * Returns the number of bytes written so far, including those still in the buffer.
+     * @return the number of bytes
+     */
+    public long bytesWritten() {
+        return flushed + out.position();
+    }
+
+    /**
+     * Returns the shared routines the code written so far jumps to.
+     * @return a mask of Routine bits
+     */
+    public int routines() {
+        return routines;
+    }
+
+    /**
+     * Writes the shared routines used by the program, behind an endless loop
+     * so the program never runs into them. Does nothing when no routine is used.
+     */
+    public void writeRoutines() {
+        if (routines == 0 || routinesWritten) {
+            return;
+        }
+        routinesWritten = true;
+        endFile();
+        // The routines are written by hand and do not follow the stack discipline the
+        // optimizer relies on, so they bypass it
+        Asm.Sink optimizer = sink;
+        if (sink != null) {
+            sink = output;
+        }
+        if (sources != null) {
+            sources.at(SourceMap.NONE);
+        }
+        put(HALT);
+        for (Routine r : Routine.values()) {
+            if ((routines & r.bit()) != 0) {
+                put(r.code);
+            }
+        }
+        sink = optimizer;
+    }
+
+    /**
+     * Copies the translation of another Writer into the output.
+     * With -hack the translation is object code, which goes to the assembler as it is.
+     * @param fragment the translation
+     */
+    public void append(Fragment fragment) {
+        routines |= fragment.routines;
+        if (assembler != null) {
+            endFile();
+            Assembler.replay(fragment.code, symbols, sources != null ? sources.next() : output);
+        } else {
+            append(fragment.code);
+        }
+        if (sources != null) {
+            sources.append(fragment.sources);
+        }
+    }
+
+    /**
+     * Copies assembly code that was translated by another Writer into the output.
+     * @param fragment the assembly code
+     */
+    public void append(byte[] fragment) {
+        endFile();
+        // Every line that is not a label is an instruction
+        for (int i = 0; i < fragment.length; i++) {
+            if ((i == 0 || fragment[i - 1] == '\n') && fragment[i] != '(') {
+                words++;
+            }
+        }
+        if (fragment.length > out.remaining()) {
+            flush();
+        }
+        if (fragment.length > out.remaining()) {
+            writeThrough(ByteBuffer.wrap(fragment));
+        } else {
+            out.put(fragment);
+        }
+    }
+
+    /**
+     * Write the assembly code that is the translation of the given arithmetic command.
+     * @param command the arithmetic command to translate
+     */
+    public void writeArithmetic(String command) {
+        Lex.Op op = Lex.Op.arithmetic(command);
+        if (op == null) {
+            throw new IllegalArgumentException("Call writeArithmetic() for a non-arithmetic command");
+        }
+        writeArithmetic(op);
+    }
+
+    /**
+     * Write the assembly code that is the translation of the given arithmetic command.
+     * A comparison is held back until the next command is known, because
+     * "lt|gt|eq; if-goto" and "lt|gt|eq; not; if-goto" turn into a single conditional jump.
+     * Neg and not on a pushed constant are computed here, and add and sub with
+     * a pushed constant change the top of the stack in place.
+     * @param command the arithmetic opcode to translate
+     */
+    public void writeArithmetic(Lex.Op command) {
+        if (command == Lex.Op.NOT && pendingCompare != null && !pendingNot) {
+            pendingNot = true;
+            notOwner = owner;
+            return;
+        }
+        if (pendingConstant) {
+            // Fold the operator into the constant, or the constant into the operator
+            if (command == Lex.Op.NEG) {
+                constant = (short) -constant;
+                return;
+            } else if (command == Lex.Op.NOT) {
+                constant = (short) ~constant;
+                return;
+            } else if ((command == Lex.Op.ADD || command == Lex.Op.SUB) && constant != Short.MIN_VALUE) {
+                pendingConstant = false;
+                addConstant(command == Lex.Op.ADD ? constant : -constant);
+                return;
+            }
+        }
+        flushPending();
+        if (command == Lex.Op.GT || command == Lex.Op.LT || command == Lex.Op.EQ) {
+            pendingCompare = command;
+            pendingOwner = owner;
+            return;
+        }
+        arithmetic(command);
+    }
+
+    /**
+     * Write the assembly code that is the translation of the given label command.
+     * @param label the label
+     */
+    public void writeLabel(String label) {
+        flushPending();
+        // Jumps arrive here from elsewhere, so the whole stack must be in memory
+        spill();
+        putSymbol(scoped(label), true);
+        if (options.profileLabels) {
+            count(scoped(label));
+        }
+    }
+
+    /**
+     * Write the assembly code that is the translation of the given goto command.
+     * @param label the label to jump to
+     */
+    public void writeGoto(String label) {
+        flushPending();
+        spill();
+        putSymbol(scoped(label), false);
+        put(JUMP);
+    }
+
+    /**
+     * Write the assembly code that is the translation of the given if-goto command.
+     * Right after a comparison, the comparison itself decides the jump and no boolean is pushed.
+     * @param label the label to jump to
+     */
+    public void writeIf(String label) {
+        if (pendingConstant) {
+            // The condition is known: always jump, or never
+            pendingConstant = false;
+            if (constant != 0) {
+                writeGoto(label);
+            }
+            return;
+        }
+        if (pendingCompare != null) {
+            Lex.Op compare = pendingCompare;
+            boolean negated = pendingNot;
+            pendingCompare = null;
+            pendingNot = false;
+            // D = x - y, with x and y popped off the stack
+            if (!topInD) {
+                put(POP_D);
+            }
+            put(TOS_SUB);
+            topInD = false;
+            putSymbol(scoped(label), false);
+            switch (compare) {
+                case GT:
+                    put(negated ? JUMP_LE : JUMP_GT);
                     break;
-                case "argument":
-                    outPrinter.print(pushTemplate1("ARG", index, false));
+                case LT:
+                    put(negated ? JUMP_GE : JUMP_LT);
                     break;
-                case "this":
-                    outPrinter.print(pushTemplate1("THIS", index, false));
+                default:
+                    put(negated ? JUMP_NE : JUMP_EQ);
+            }
+            return;
+        }
+        flushPending();
+        if (!topInD) {
+            put(POP_D);
+        }
+        topInD = false;
+        putSymbol(scoped(label), false);
+        put(JUMP_NE);
+    }
+
+    /**
+     * Write the assembly code that is the translation of the given call command.
+     * The site only passes the argument count in R13, the function in R14 and the
+     * return address in D; the shared call routine saves the frame and jumps.
+     * With tail calls enabled the call is held back, since "call f n; return" is a tail call.
+     * @param functionName the function to call
+     * @param numArgs the number of arguments already pushed
+     */
+    public void writeCall(String functionName, int numArgs) {
+        if (options.intrinsics && numArgs == 2 && (functionName.equals(MULTIPLY) || functionName.equals(DIVIDE))) {
+            intrinsic(functionName.equals(MULTIPLY));
+            return;
+        }
+        flushPending();
+        spill();
+        if (options.tailCall) {
+            pendingCall = functionName;
+            pendingArgs = numArgs;
+            pendingOwner = owner;
+            return;
+        }
+        call(functionName, numArgs);
+    }
+
+    /**
+     * Write the assembly code that is the translation of the given return command.
+     * The return value goes to the shared return routine in D, or on the stack.
+     * Right after a call, the callee takes over the frame and returns in place of this function.
+     */
+    public void writeReturn() {
+        if (pendingCall != null) {
+            String callee = pendingCall;
+            pendingCall = null;
+            passArgs(pendingArgs);
+            putSymbol(callee, false);
+            put(SET_TARGET);
+            put(TAIL_CALL);
+            routines |= Routine.TAIL.bit();
+            return;
+        }
+        flushPending();
+        if (options.inlineCall) {
+            bypass(true);
+            put(topInD ? RETURN_INLINE_D : RETURN_INLINE);
+            bypass(false);
+        } else {
+            put(topInD ? RETURN_D : RETURN_STACK);
+            routines |= Routine.RETURN.bit();
+        }
+        topInD = false;
+    }
+
+    /**
+     * Call site, with nothing held back.
+     * @param functionName the function to call
+     * @param numArgs the number of arguments already pushed
+     */
+    private void call(String functionName, int numArgs) {
+        if (options.inlineCall) {
+            bypass(true);
+            putLabel(RETURN, false);
+            put(LOAD_VALUE);
+            put(CALL_FRAME);
+            putA(numArgs + 5);
+            put(SET_ARG);
+            putSymbol(functionName, false);
+            put(JUMP);
+            putLabel(RETURN, true);
+            arthJumpFlag++;
+            bypass(false);
+            return;
+        }
+        passArgs(numArgs);
+        putSymbol(functionName, false);
+        put(SET_TARGET);
+        routineCall(Routine.CALL);
+        arthJumpFlag++;
+    }
+
+    /**
+     * Sends the code written next straight to the output, or through the optimizer again.
+     * Inline call and return move SP in ways the peephole rules do not expect, like the
+     * shared routines they are copied from.
+     * @param on true to bypass the optimizer
+     */
+    private void bypass(boolean on) {
+        if (peephole == null) {
+            return;
+        }
+        if (on) {
+            peephole.flush();
+            sink = output;
+            bypassStart = romWords();
+            if (sources != null) {
+                sources.at(sourceMark);
+            }
+        } else {
+            sink = peephole;
+            bypassed += romWords() - bypassStart;
+        }
+    }
+
+    /**
+     * Call site of Math.multiply or Math.divide, replaced by a shared routine written in assembly.
+     * Multiplying by a pushed constant with few bits set, and dividing by 1, need no routine.
+     * @param multiply true for Math.multiply, false for Math.divide
+     */
+    private void intrinsic(boolean multiply) {
+        if (pendingConstant && (multiply ? Integer.bitCount(constant) <= MULTIPLY_BITS : constant == 1)) {
+            pendingConstant = false;
+            spill();
+            if (multiply) {
+                multiplyBy(constant);
+            }
+            return;
+        }
+        flushPending();
+        spill();
+        routineCall(multiply ? Routine.MULTIPLY : Routine.DIVIDE);
+        arthJumpFlag++;
+        if (!multiply) {
+            // Dividing by zero goes to the real Math.divide, through the call routine
+            routines |= Routine.CALL.bit();
+        }
+    }
+
+    /**
+     * Multiplies the top of the stack by a constant, one shifted copy per bit set.
+     * @param value the constant
+     */
+    private void multiplyBy(int value) {
+        if (value == 0) {
+            put(SET_FALSE);
+        } else if (Integer.bitCount(value) == 1) {
+            put(LOAD_TOP);
+            for (int i = 1; i < value; i <<= 1) {
+                put(DOUBLE);
+            }
+        } else {
+            // R13 holds the top times 2^i
+            put(LOAD_TOP);
+            put(SAVE_D);
+            if ((value & 1) == 0) {
+                put(SET_FALSE);
+            }
+            for (int i = 1; 1 << i <= value; i++) {
+                put(DOUBLE_R13);
+                if ((value & 1 << i) != 0) {
+                    put(ADD_D_TO_TOP);
+                }
+            }
+        }
+    }
+
+    /**
+     * Increments the 32-bit execution counter of a function or a label, if it has one.
+     * D is free at both places, since nothing is held back there.
+     * @param name the function or the scoped label
+     */
+    private void count(String name) {
+        int address = profile == null ? -1 : profile.address(name);
+        if (address == -1) {
+            return;
+        }
+        putA(address);
+        put(COUNT_LOW);
+        putLabel(COUNTED, false);
+        put(JUMP_NE);
+        putA(address + 1);
+        put(INC_MEMORY);
+        putLabel(COUNTED, true);
+        arthJumpFlag++;
+    }
+
+    /**
+     * Passes the argument count of a call in R13.
+     * @param numArgs the number of arguments
+     */
+    private void passArgs(int numArgs) {
+        if (numArgs == 0) {
+            put(NO_ARGS);
+        } else if (numArgs == 1) {
+            put(ONE_ARG);
+        } else {
+            putA(numArgs);
+            put(LOAD_VALUE);
+            put(SAVE_D);
+        }
+    }
+
+    /**
+     * Write the assembly code that is the translation of the given function command:
+     * the entry label, and the locals pushed as zeros.
+     * @param functionName the function
+     * @param numLocals the number of local variables
+     */
+    public void writeFunction(String functionName, int numLocals) {
+        flushPending();
+        spill();
+        function = functionName;
+        // The prologue belongs to the new function
+        setLine(sourceLine);
+        putSymbol(functionName, true);
+        count(functionName);
+        if (numLocals == 1) {
+            put(PUSH_ZERO);
+        } else if (numLocals > 1 && numLocals <= options.unrollLocals) {
+            put(ZEROS_HEAD);
+            for (int i = 1; i < numLocals; i++) {
+                put(NEXT_ZERO);
+            }
+            put(ZEROS_TAIL);
+        } else if (numLocals > 1) {
+            putA(numLocals);
+            put(LOAD_VALUE);
+            putLabel(INIT, true);
+            put(ZEROS_LOOP);
+            putLabel(INIT, false);
+            put(LOOP_BACK);
+            arthJumpFlag++;
+        }
+    }
+
+    /**
+     * Write the assembly code of "push S i; push constant c; add|sub; pop S i": the entry is changed in place.
+     * @param segment the memory segment, not constant
+     * @param index the index in the segment
+     * @param value the constant to add, negative for sub
+     */
+    public void writeIncrement(Lex.Segment segment, int index, int value) {
+        flushPending();
+        spill();
+        if (value == 0) {
+            return;
+        }
+        if (value == 1 || value == -1) {
+            point(segment, index);
+            put(value == 1 ? INC_MEMORY : DEC_MEMORY);
+            return;
+        }
+        if (keepsD(segment, index)) {
+            putA(Math.abs(value));
+            put(LOAD_VALUE);
+            point(segment, index);
+        } else {
+            // Computing the address loses D, so the address waits in R13
+            put(load(segment));
+            putA(index);
+            put(OFFSET_ADDRESS);
+            put(SAVE_D);
+            putA(Math.abs(value));
+            put(LOAD_VALUE);
+            put(BASE_R13);
+        }
+        put(value > 0 ? ADD_MEMORY : SUB_MEMORY);
+    }
+
+    /**
+     * Write the assembly code of "push X; push Y; add; pop pointer 1; push that 0":
+     * THAT is set to X + Y and the entry it points at is pushed.
+     * @param base the segment of X
+     * @param baseIndex the index of X
+     * @param offset the segment of Y
+     * @param offsetIndex the index of Y
+     */
+    public void writeArrayRead(Lex.Segment base, int baseIndex, Lex.Segment offset, int offsetIndex) {
+        flushPending();
+        spill();
+        load(base, baseIndex);
+        if (offset == Lex.Segment.CONSTANT) {
+            if (offsetIndex == 1) {
+                put(D_INC);
+            } else if (offsetIndex != 0) {
+                putA(offsetIndex);
+                put(D_ADD_A);
+            }
+        } else if (keepsD(offset, offsetIndex)) {
+            point(offset, offsetIndex);
+            put(D_ADD_M);
+        } else {
+            put(SAVE_D);
+            load(offset, offsetIndex);
+            put(D_ADD_R13);
+        }
+        put(LOAD_THROUGH_THAT);
+        if (options.topOfStack) {
+            topInD = true;
+            topOwner = owner;
+        } else {
+            put(PUSH_D);
+        }
+    }
+
+    /**
+     * Write the assembly code of "pop temp t; pop pointer 1; push temp t; pop that 0":
+     * the value on top of the stack is stored at the address under it, through THAT.
+     * @param temp the index in the temp segment
+     */
+    public void writeArrayWrite(int temp) {
+        if (pendingConstant) {
+            // The value is known, it does not have to go through the stack
+            pendingConstant = false;
+            spill();
+            loadConstant(constant);
+        } else {
+            flushPending();
+            if (!topInD) {
+                put(POP_D);
+            }
+            topInD = false;
+        }
+        putA(temp(temp));
+        put(STORE_D);
+        put(POP_D);
+        put(STORE_THAT);
+        putA(temp(temp));
+        put(LOAD_MEMORY);
+        put(BASE_THAT);
+        put(STORE_D);
+    }
+
+    /**
+     * Write the assembly code of "push X; pop Y": the value is copied without going through the stack.
+     * @param from the segment of X
+     * @param fromIndex the index of X
+     * @param to the segment of Y, not constant
+     * @param toIndex the index of Y
+     */
+    public void writeMove(Lex.Segment from, int fromIndex, Lex.Segment to, int toIndex) {
+        flushPending();
+        spill();
+        if (from == Lex.Segment.CONSTANT && (fromIndex == 0 || fromIndex == 1)) {
+            point(to, toIndex);
+            put(fromIndex == 0 ? STORE_ZERO : STORE_ONE);
+        } else {
+            load(from, fromIndex);
+            storeD(to, toIndex);
+        }
+    }
+
+    /**
+     * Returns the assembly symbol of a VM label: labels are local to the function they are declared in.
+     * @param label the VM label
+     * @return the symbol
+     */
+    private String scoped(String label) {
+        return function == null ? label : function + "$" + label;
+    }
+
+    /**
+     * Writes the command held back to be fused with the next one, if any.
+     */
+    private void flushPending() {
+        if (!pendingConstant && pendingCompare == null && pendingCall == null) {
+            return;
+        }
+        int current = owner;
+        charge(pendingOwner);
+        if (pendingConstant) {
+            pendingConstant = false;
+            pushConstant(constant);
+        } else if (pendingCompare != null) {
+            flushCompare();
+        } else {
+            String callee = pendingCall;
+            pendingCall = null;
+            call(callee, pendingArgs);
+        }
+        charge(current);
+    }
+
+    /**
+     * Pushes a constant, with a single store for 0, 1 and -1.
+     * @param value the constant, a 16-bit value
+     */
+    private void pushConstant(int value) {
+        if (options.topOfStack) {
+            spill();
+            loadConstant(value);
+            topInD = true;
+            topOwner = owner;
+        } else if (value == 0) {
+            put(PUSH_ZERO);
+        } else if (value == 1) {
+            put(PUSH_ONE);
+        } else if (value == -1) {
+            put(PUSH_TRUE);
+        } else {
+            loadConstant(value);
+            put(PUSH_D);
+        }
+    }
+
+    /**
+     * Sets D to a constant.
+     * @param value the constant, a 16-bit value
+     */
+    private void loadConstant(int value) {
+        if (value == 0) {
+            put(D_ZERO);
+        } else if (value == 1) {
+            put(D_ONE);
+        } else if (value == -1) {
+            put(D_TRUE);
+        } else if (value > 0) {
+            putA(value);
+            put(LOAD_VALUE);
+        } else if (value > Short.MIN_VALUE) {
+            putA(-value);
+            put(LOAD_NEGATED);
+        } else {
+            // -32768 has no positive counterpart, but it is the complement of 32767
+            putA(~value);
+            put(LOAD_COMPLEMENT);
+        }
+    }
+
+    /**
+     * Adds a constant to the top of the stack in place: "push constant n; add" and "push constant n; sub".
+     * @param value the constant to add, a 16-bit value other than -32768
+     */
+    private void addConstant(int value) {
+        if (value == 0) {
+            return;
+        }
+        if (options.topOfStack) {
+            if (!topInD) {
+                put(POP_D);
+            }
+            if (value == 1 || value == -1) {
+                put(value == 1 ? D_INC : D_DEC);
+            } else {
+                putA(Math.abs(value));
+                put(value > 0 ? D_ADD_A : D_SUB_A);
+            }
+            topInD = true;
+            topOwner = owner;
+        } else if (value == 1 || value == -1) {
+            put(value == 1 ? INC_TOP : DEC_TOP);
+        } else {
+            putA(Math.abs(value));
+            put(value > 0 ? ADD_TOP : SUB_TOP);
+        }
+    }
+
+    /**
+     * Writes a comparison that was held back by writeArithmetic(), and the not after it.
+     */
+    private void flushCompare() {
+        Lex.Op compare = pendingCompare;
+        boolean negated = pendingNot;
+        pendingCompare = null;
+        pendingNot = false;
+        arithmetic(compare);
+        if (negated) {
+            int current = owner;
+            charge(notOwner);
+            arithmetic(Lex.Op.NOT);
+            charge(current);
+        }
+    }
+
+    /**
+     * Write the assembly code of an arithmetic command, with nothing held back.
+     * @param command the arithmetic opcode to translate
+     */
+    private void arithmetic(Lex.Op command) {
+        if (options.topOfStack) {
+            tosArithmetic(command);
+            return;
+        }
+        switch (command) {
+            case ADD:
+                put(BINARY_ADD);
+                break;
+            case SUB:
+                put(BINARY_SUB);
+                break;
+            case AND:
+                put(BINARY_AND);
+                break;
+            case OR:
+                put(BINARY_OR);
+                break;
+            case GT:
+                if (options.sharedCompare) {
+                    routineCall(Routine.GT);
+                } else {
+                    arithmeticTemplate2(COMPARE_JLE); // not <=
+                }
+                arthJumpFlag++;
+                break;
+            case LT:
+                if (options.sharedCompare) {
+                    routineCall(Routine.LT);
+                } else {
+                    arithmeticTemplate2(COMPARE_JGE); // not >=
+                }
+                arthJumpFlag++;
+                break;
+            case EQ:
+                if (options.sharedCompare) {
+                    routineCall(Routine.EQ);
+                } else {
+                    arithmeticTemplate2(COMPARE_JNE); // not <>
+                }
+                arthJumpFlag++;
+                break;
+            case NOT:
+                put(UNARY_NOT);
+                break;
+            case NEG:
+                put(UNARY_NEG);
+                break;
+            default:
+                throw new IllegalArgumentException("Call writeArithmetic() for a non-arithmetic command");
+        }
+    }
+
+    /**
+     * Write the assembly code that is the translation of the given command,
+     * where the command is either PUSH or POP.
+     * @param command PUSH or POP
+     * @param segment the memory segment
+     * @param index the index in the segment
+     */
+    public void writePushPop(int command, String segment, int index) {
+        Lex.Segment seg = Lex.Segment.of(segment);
+        if (seg == null) {
+            throw new IllegalArgumentException("Invalid segment for " + (command == Lex.PUSH ? "PUSH" : "POP") + " command");
+        }
+        writePushPop(command, seg, index);
+    }
+
+    /**
+     * Write the assembly code that is the translation of the given command,
+     * where the command is either PUSH or POP.
+     * @param command PUSH or POP
+     * @param segment the memory segment
+     * @param index the index in the segment
+     */
+    public void writePushPop(int command, Lex.Segment segment, int index) {
+        flushPending();
+        if (command == Lex.PUSH && segment == Lex.Segment.CONSTANT && index >= 0 && index <= Short.MAX_VALUE) {
+            // Held back, the next command may use the value directly
+            pendingConstant = true;
+            constant = index;
+            pendingOwner = owner;
+            return;
+        }
+        if (options.topOfStack) {
+            tosPushPop(command, segment, index);
+            return;
+        }
+        Routine routine = options.sharedPushPop ? pushPopRoutine(command, segment) : null;
+        if (routine != null) {
+            // The index goes in R13
+            putA(index);
+            put(LOAD_VALUE);
+            put(SAVE_D);
+            routineCall(routine);
+            arthJumpFlag++;
+            return;
+        }
+        if (command == Lex.PUSH) {
+            switch (segment) {
+                case CONSTANT:
+                    putA(index);
+                    put(LOAD_VALUE);
+                    put(PUSH_D);
+                    break;
+                case LOCAL:
+                    pushTemplate1(LOAD_LCL, index, false);
+                    break;
+                case ARGUMENT:
+                    pushTemplate1(LOAD_ARG, index, false);
+                    break;
+                case THIS:
+                    pushTemplate1(LOAD_THIS, index, false);
+                    break;
+                case THAT:
+                    pushTemplate1(LOAD_THAT, index, false);
+                    break;
+                case TEMP:
+                    putA(temp(index));
+                    pushTemplate1(LOAD_MEMORY, index, true);
+                    break;
+                case POINTER:
+                    pushTemplate1(pointer(index) == 0 ? LOAD_THIS : LOAD_THAT, index, true);
+                    break;
+                case STATIC:
+                    putStatic(index);
+                    pushTemplate1(LOAD_MEMORY, index, true);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid segment for PUSH command");
+            }
+        } else if (command == Lex.POP) {
+            switch (segment) {
+                case LOCAL:
+                    popTemplate1(LOAD_LCL, index);
+                    break;
+                case ARGUMENT:
+                    popTemplate1(LOAD_ARG, index);
+                    break;
+                case THIS:
+                    popTemplate1(LOAD_THIS, index);
+                    break;
+                case THAT:
+                    popTemplate1(LOAD_THAT, index);
+                    break;
+                case TEMP:
+                    put(POP_D);
+                    putA(temp(index));
+                    put(STORE_D);
+                    break;
+                case POINTER:
+                    put(POP_D);
+                    put(pointer(index) == 0 ? STORE_THIS : STORE_THAT);
+                    break;
+                case STATIC:
+                    put(POP_D);
+                    putStatic(index);
+                    put(STORE_D);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid segment for POP command");
+            }
+        } else {
+            throw new IllegalArgumentException("Call writePushPop() for a non-pushpop command");
+        }
+    }
+
+    /**
+     * Flush the buffered output and close the output file.
+     * With -hack the assembler writes the ROM image, or the object code of a fragment.
+     * A program too large for the ROM gets no image, and any old one is deleted.
+     */
+    public void close() {
+        endFile();
+        flush();
+        try {
+            if (hackOut != null && !fitsRom()) {
+                System.out.println("Cannot write " + hackOut + ": the program takes " + assembler.words()
+                        + " words, the ROM only has " + Assembler.ROM_SIZE);
+                hackOut.delete();
+            } else if (hackOut != null) {
+                try (FileChannel rom = FileChannel.open(hackOut.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    assembler.writeHack(rom);
+                }
+            } else if (assembler != null) {
+                assembler.writeObject(outChannel);
+            }
+            if (outChannel != null) {
+                outChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Template for gt, lt, eq.
+     * @param jump the jump and the code that sets the result to true
+     */
+    private void arithmeticTemplate2(Asm.Template jump) {
+        put(COMPARE_HEAD);
+        putLabel(FALSE, false);
+        put(jump);
+        putLabel(CONTINUE, false);
+        put(JUMP);
+        putLabel(FALSE, true);
+        put(SET_FALSE);
+        putLabel(CONTINUE, true);
+    }
+
+    /**
+     * Top-of-stack mode of writeArithmetic(): the operands are taken from D and the stack,
+     * and the result is left in D.
+     * @param command the arithmetic opcode to translate
+     */
+    private void tosArithmetic(Lex.Op command) {
+        if (options.sharedCompare && (command == Lex.Op.GT || command == Lex.Op.LT || command == Lex.Op.EQ)) {
+            // The shared routines work on the stack in memory
+            spill();
+            routineCall(command == Lex.Op.GT ? Routine.GT : command == Lex.Op.LT ? Routine.LT : Routine.EQ);
+            arthJumpFlag++;
+            return;
+        }
+        if (!topInD) {
+            put(POP_D);
+        }
+        switch (command) {
+            case ADD:
+                put(TOS_ADD);
+                break;
+            case SUB:
+                put(TOS_SUB);
+                break;
+            case AND:
+                put(TOS_AND);
+                break;
+            case OR:
+                put(TOS_OR);
+                break;
+            case GT:
+                tosCompare(TOS_JGT);
+                break;
+            case LT:
+                tosCompare(TOS_JLT);
+                break;
+            case EQ:
+                tosCompare(TOS_JEQ);
+                break;
+            case NOT:
+                put(TOS_NOT);
+                break;
+            case NEG:
+                put(TOS_NEG);
+                break;
+            default:
+                throw new IllegalArgumentException("Call writeArithmetic() for a non-arithmetic command");
+        }
+        topInD = true;
+        topOwner = owner;
+    }
+
+    /**
+     * Top-of-stack template for gt, lt, eq: the second operand is in D and the result goes to D.
+     * @param jump the jump taken when the result is true, and the code that sets D to false
+     */
+    private void tosCompare(Asm.Template jump) {
+        put(TOS_SUB);
+        putLabel(TRUE, false);
+        put(jump);
+        putLabel(CONTINUE, false);
+        put(JUMP);
+        putLabel(TRUE, true);
+        put(SET_TRUE);
+        putLabel(CONTINUE, true);
+        arthJumpFlag++;
+    }
+
+    /**
+     * Top-of-stack mode of writePushPop(): push leaves the value in D,
+     * pop takes it from D, loading it from the stack first if needed.
+     * @param command PUSH or POP
+     * @param segment the memory segment
+     * @param index the index in the segment
+     */
+    private void tosPushPop(int command, Lex.Segment segment, int index) {
+        if (command == Lex.PUSH) {
+            spill();
+            load(segment, index);
+            topInD = true;
+            topOwner = owner;
+        } else if (command == Lex.POP) {
+            if (!topInD) {
+                put(POP_D);
+            }
+            storeD(segment, index);
+            topInD = false;
+        } else {
+            throw new IllegalArgumentException("Call writePushPop() for a non-pushpop command");
+        }
+    }
+
+    /**
+     * Sets D to an entry of a segment, or to a constant.
+     * @param segment the memory segment
+     * @param index the index in the segment
+     */
+    private void load(Lex.Segment segment, int index) {
+        if (segment == Lex.Segment.CONSTANT) {
+            loadConstant(index);
+        } else {
+            point(segment, index);
+            put(LOAD_MEMORY);
+        }
+    }
+
+    /**
+     * Stores D into an entry of a segment.
+     * @param segment the memory segment
+     * @param index the index in the segment
+     */
+    private void storeD(Lex.Segment segment, int index) {
+        switch (segment) {
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                store(base(segment), load(segment), index);
+                break;
+            case TEMP:
+                putA(temp(index));
+                put(STORE_D);
+                break;
+            case POINTER:
+                put(pointer(index) == 0 ? STORE_THIS : STORE_THAT);
+                break;
+            case STATIC:
+                putStatic(index);
+                put(STORE_D);
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid segment for POP command");
+        }
+    }
+
+    /**
+     * Points A at an entry of a segment. D is lost unless keepsD() says otherwise.
+     * @param segment the memory segment, not constant
+     * @param index the index in the segment
+     */
+    private void point(Lex.Segment segment, int index) {
+        switch (segment) {
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                address(base(segment), load(segment), index);
+                break;
+            case TEMP:
+                putA(temp(index));
+                break;
+            case POINTER:
+                put(pointer(index) == 0 ? AT_THIS : AT_THAT);
+                break;
+            case STATIC:
+                putStatic(index);
+                break;
+            default:
+                throw new IllegalArgumentException("The constant segment has no address");
+        }
+    }
+
+    /**
+     * Tells whether point() leaves D alone.
+     * @param segment the memory segment
+     * @param index the index in the segment
+     * @return true for fixed addresses and for entries A walks to from the base
+     */
+    private static boolean keepsD(Lex.Segment segment, int index) {
+        return segment == Lex.Segment.TEMP || segment == Lex.Segment.POINTER || segment == Lex.Segment.STATIC
+                || index <= LOAD_WALK;
+    }
+
+    /**
+     * Returns the "@segment / A=M" lines of a segment that is reached through a pointer.
+     * @param segment local, argument, this or that
+     * @return the template
+     */
+    private static Asm.Template base(Lex.Segment segment) {
+        switch (segment) {
+            case LOCAL:
+                return BASE_LCL;
+            case ARGUMENT:
+                return BASE_ARG;
+            case THIS:
+                return BASE_THIS;
+            default:
+                return BASE_THAT;
+        }
+    }
+
+    /**
+     * Returns the "@segment / D=M" lines of a segment that is reached through a pointer.
+     * @param segment local, argument, this or that
+     * @return the template
+     */
+    private static Asm.Template load(Lex.Segment segment) {
+        switch (segment) {
+            case LOCAL:
+                return LOAD_LCL;
+            case ARGUMENT:
+                return LOAD_ARG;
+            case THIS:
+                return LOAD_THIS;
+            default:
+                return LOAD_THAT;
+        }
+    }
+
+    /**
+     * Points A at an entry of a segment. D is lost.
+     * @param base the "@segment / A=M" lines
+     * @param load the "@segment / D=M" lines
+     * @param index the index in the segment
+     */
+    private void address(Asm.Template base, Asm.Template load, int index) {
+        if (index <= LOAD_WALK) {
+            put(base);
+            for (int i = 0; i < index; i++) {
+                put(NEXT_ADDRESS);
+            }
+        } else {
+            put(load);
+            putA(index);
+            put(OFFSET);
+        }
+    }
+
+    /**
+     * Stores D into an entry of a segment.
+     * @param base the "@segment / A=M" lines
+     * @param load the "@segment / D=M" lines
+     * @param index the index in the segment
+     */
+    private void store(Asm.Template base, Asm.Template load, int index) {
+        if (index <= STORE_WALK) {
+            put(base);
+            for (int i = 0; i < index; i++) {
+                put(NEXT_ADDRESS);
+            }
+            put(STORE_D);
+        } else {
+            put(SAVE_D);
+            put(load);
+            putA(index);
+            put(OFFSET_ADDRESS);
+            put(SWAP_R13);
+        }
+    }
+
+    private static int temp(int index) {
+        if (index < 0 || index > 7) {
+            throw new IllegalArgumentException("Invalid index for temp segment: " + index);
+        }
+        return 5 + index;
+    }
+
+    private static int pointer(int index) {
+        if (index != 0 && index != 1) {
+            throw new IllegalArgumentException("Invalid index for pointer segment: " + index);
+        }
+        return index;
+    }
+
+    /**
+     * Writes the top of the stack back to memory if it is held in D.
+     * Needed wherever code that expects the whole stack in memory may run next.
+     */
+    private void spill() {
+        if (topInD) {
+            topInD = false;
+            int current = owner;
+            charge(topOwner);
+            put(PUSH_D);
+            charge(current);
+        }
+    }
+
+    /**
+     * Call site of a shared routine that takes the return address in D: gt, lt, eq, multiply, divide,
+     * segment push and pop, and call.
+     * @param routine the routine
+     */
+    private void routineCall(Routine routine) {
+        putLabel(RETURN, false);
+        put(routine.call);
+        putLabel(RETURN, true);
+        routines |= routine.bit();
+    }
+
+    /**
+     * Shared routine for gt, lt or eq. It expects the return address in D, keeps it in R15,
+     * replaces the two topmost values with the result and jumps back.
+     * @param name EQ, GT or LT
+     * @param jump the jump taken when the result is true
+     * @return the assembly code
+     */
+    private static String compareRoutine(String name, String jump) {
+        return "($" + name + ")\n" +
+               "@R15\n" +
+               "M=D\n" +
+               "@SP\n" +
+               "AM=M-1\n" +
+               "D=M\n" +
+               "A=A-1\n" +
+               "D=M-D\n" +
+               "M=-1\n" +
+               "@$" + name + ".END\n" +
+               "D;" + jump + "\n" +
+               "@SP\n" +
+               "A=M-1\n" +
+               "M=0\n" +
+               "($" + name + ".END)\n" +
+               "@R15\n" +
+               "A=M\n" +
+               "0;JMP\n";
+    }
+
+    /**
+     * Returns the shared routine of a push or pop through a segment pointer.
+     * @param command PUSH or POP
+     * @param segment the segment
+     * @return the routine, or null for the segments at fixed addresses
+     */
+    private static Routine pushPopRoutine(int command, Lex.Segment segment) {
+        boolean push = command == Lex.PUSH;
+        switch (segment) {
+            case LOCAL:
+                return push ? Routine.PUSH_LOCAL : Routine.POP_LOCAL;
+            case ARGUMENT:
+                return push ? Routine.PUSH_ARGUMENT : Routine.POP_ARGUMENT;
+            case THIS:
+                return push ? Routine.PUSH_THIS : Routine.POP_THIS;
+            case THAT:
+                return push ? Routine.PUSH_THAT : Routine.POP_THAT;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Shared push routine of a segment. It expects the return address in D and the index in R13.
+     * @param base the register that points to the segment
+     * @return the assembly code
+     */
+    private static String pushRoutine(String base) {
+        return "($PUSH." + base + ")\n" +
+               "@R14\n" +
+               "M=D\n" +
+               "@" + base + "\n" +
+               "D=M\n" +
+               "@R13\n" +
+               "A=D+M\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "M=M+1\n" +
+               "A=M-1\n" +
+               "M=D\n" +
+               "@R14\n" +
+               "A=M\n" +
+               "0;JMP\n";
+    }
+
+    /**
+     * Shared pop routine of a segment. It expects the return address in D and the index in R13,
+     * where it then keeps the address to store to.
+     * @param base the register that points to the segment
+     * @return the assembly code
+     */
+    private static String popRoutine(String base) {
+        return "($POP." + base + ")\n" +
+               "@R14\n" +
+               "M=D\n" +
+               "@" + base + "\n" +
+               "D=M\n" +
+               "@R13\n" +
+               "M=D+M\n" +
+               "@SP\n" +
+               "AM=M-1\n" +
+               "D=M\n" +
+               "@R13\n" +
+               "A=M\n" +
+               "M=D\n" +
+               "@R14\n" +
+               "A=M\n" +
+               "0;JMP\n";
+    }
+
+    /**
+     * Shared call routine. It expects the return address in D, the argument count in R13
+     * and the function in R14. It pushes the return address and the frame of the caller,
+     * repositions ARG and LCL and jumps to the function.
+     * @return the assembly code
+     */
+    private static String callRoutine() {
+        return "($CALL)\n" +
+               "@SP\n" +
+               "A=M\n" +
+               "M=D\n" +
+               "@LCL\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "AM=M+1\n" +
+               "M=D\n" +
+               "@ARG\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "AM=M+1\n" +
+               "M=D\n" +
+               "@THIS\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "AM=M+1\n" +
+               "M=D\n" +
+               "@THAT\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "AM=M+1\n" +
+               "M=D\n" +
+               "@SP\n" +
+               "MD=M+1\n" +
+               "@LCL\n" +
+               "M=D\n" +
+               "@R13\n" +
+               "D=D-M\n" +
+               "@5\n" +
+               "D=D-A\n" +
+               "@ARG\n" +
+               "M=D\n" +
+               "@R14\n" +
+               "A=M\n" +
+               "0;JMP\n";
+    }
+
+    /**
+     * Shared return routine. $RETURN pops the return value, $RETURN.D takes it in D.
+     * It keeps the value in R13 and the return address in R14, stores the value in place
+     * of the arguments, restores the frame of the caller and jumps back.
+     * @return the assembly code
+     */
+    private static String returnRoutine() {
+        return "($RETURN)\n" +
+               "@SP\n" +
+               "AM=M-1\n" +
+               "D=M\n" +
+               "($RETURN.D)\n" +
+               "@R13\n" +
+               "M=D\n" +
+               "@LCL\n" +
+               "D=M\n" +
+               "@5\n" +
+               "A=D-A\n" +
+               "D=M\n" +
+               "@R14\n" +
+               "M=D\n" +
+               "@R13\n" +
+               "D=M\n" +
+               "@ARG\n" +
+               "A=M\n" +
+               "M=D\n" +
+               "D=A+1\n" +
+               "@SP\n" +
+               "M=D\n" +
+               "@LCL\n" +
+               "AM=M-1\n" +
+               "D=M\n" +
+               "@THAT\n" +
+               "M=D\n" +
+               "@LCL\n" +
+               "AM=M-1\n" +
+               "D=M\n" +
+               "@THIS\n" +
+               "M=D\n" +
+               "@LCL\n" +
+               "AM=M-1\n" +
+               "D=M\n" +
+               "@ARG\n" +
+               "M=D\n" +
+               "@LCL\n" +
+               "AM=M-1\n" +
+               "D=M\n" +
+               "@LCL\n" +
+               "M=D\n" +
+               "@R14\n" +
+               "A=M\n" +
+               "0;JMP\n";
+    }
+
+    /**
+     * Shared tail call routine. It expects the argument count in R13 and the function in R14.
+     * The frame of the current function is reused: the arguments of the callee replace its
+     * arguments and the saved frame of its caller moves right above them, so the callee
+     * returns straight to that caller. When both functions take as many arguments, the saved
+     * frame is already in place; otherwise it is pushed above the arguments and the whole block
+     * is copied down to ARG, lowest address first, since it can overlap its destination.
+     * @return the assembly code
+     */
+    private static String tailRoutine() {
+        return "($TAIL)\n" +
+               // D = arguments of the current function - arguments of the callee
+               "@ARG\n" +
+               "D=M\n" +
+               "@R13\n" +
+               "D=D+M\n" +
+               "@5\n" +
+               "D=D+A\n" +
+               "@LCL\n" +
+               "D=M-D\n" +
+               "@$TAIL.MOVE\n" +
+               "D;JNE\n" +
+               "($TAIL.COPY)\n" +
+               "@R13\n" +
+               "D=M\n" +
+               "@$TAIL.JUMP\n" +
+               "D;JEQ\n" +
+               "@R13\n" +
+               "MD=M-1\n" +
+               "@ARG\n" +
+               "D=D+M\n" +
+               "@R15\n" +
+               "M=D\n" +
+               "@SP\n" +
+               "AM=M-1\n" +
+               "D=M\n" +
+               "@R15\n" +
+               "A=M\n" +
+               "M=D\n" +
+               "@$TAIL.COPY\n" +
+               "0;JMP\n" +
+               "($TAIL.MOVE)\n" +
+               "@LCL\n" +
+               "D=M\n" +
+               "@5\n" +
+               "A=D-A\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "A=M\n" +
+               "M=D\n" +
+               "@LCL\n" +
+               "D=M\n" +
+               "@4\n" +
+               "A=D-A\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "AM=M+1\n" +
+               "M=D\n" +
+               "@LCL\n" +
+               "D=M\n" +
+               "@3\n" +
+               "A=D-A\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "AM=M+1\n" +
+               "M=D\n" +
+               "@LCL\n" +
+               "A=M-1\n" +
+               "A=A-1\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "AM=M+1\n" +
+               "M=D\n" +
+               "@LCL\n" +
+               "A=M-1\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "AM=M+1\n" +
+               "M=D\n" +
+               "@SP\n" +
+               "M=M+1\n" +
+               // R15 = first argument, LCL = ARG + arguments + 5, R13 = ARG
+               "@R13\n" +
+               "D=M\n" +
+               "@5\n" +
+               "D=D+A\n" +
+               "@R15\n" +
+               "M=D\n" +
+               "@ARG\n" +
+               "D=D+M\n" +
+               "@LCL\n" +
+               "M=D\n" +
+               "@SP\n" +
+               "D=M\n" +
+               "@R15\n" +
+               "M=D-M\n" +
+               "@ARG\n" +
+               "D=M\n" +
+               "@R13\n" +
+               "M=D\n" +
+               "($TAIL.LOOP)\n" +
+               "@R15\n" +
+               "M=M+1\n" +
+               "A=M-1\n" +
+               "D=M\n" +
+               "@R13\n" +
+               "M=M+1\n" +
+               "A=M-1\n" +
+               "M=D\n" +
+               "@R13\n" +
+               "D=M\n" +
+               "@LCL\n" +
+               "D=D-M\n" +
+               "@$TAIL.LOOP\n" +
+               "D;JLT\n" +
+               "($TAIL.JUMP)\n" +
+               "@LCL\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "M=D\n" +
+               "@R14\n" +
+               "A=M\n" +
+               "0;JMP\n";
+    }
+
+    /**
+     * Shared multiply routine. It expects the return address in D, keeps it in R15, and replaces
+     * the two topmost values x and y with their product: x is doubled in R13 while the mask
+     * above the stack walks the bits of y, and every bit of y that is set adds x to the result
+     * and is cleared from y in R14, so the loop ends with the highest bit of y.
+     * @return the assembly code
+     */
+    private static String multiplyRoutine() {
+        return "($MULTIPLY)\n" +
+               "@R15\n" +
+               "M=D\n" +
+               "@SP\n" +
+               "AM=M-1\n" +
+               "D=M\n" +
+               "@R14\n" +
+               "M=D\n" +
+               "@SP\n" +
+               "A=M-1\n" +
+               "D=M\n" +
+               "M=0\n" +
+               "@R13\n" +
+               "M=D\n" +
+               "@SP\n" +
+               "A=M\n" +
+               "M=1\n" +
+               "($MULTIPLY.LOOP)\n" +
+               "@R14\n" +
+               "D=M\n" +
+               "@$MULTIPLY.END\n" +
+               "D;JEQ\n" +
+               "@SP\n" +
+               "A=M\n" +
+               "D=D&M\n" +
+               "@$MULTIPLY.NEXT\n" +
+               "D;JEQ\n" +
+               "@R14\n" +
+               "M=M-D\n" +
+               "@R13\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "A=M-1\n" +
+               "M=D+M\n" +
+               "($MULTIPLY.NEXT)\n" +
+               "@R13\n" +
+               "D=M\n" +
+               "M=D+M\n" +
+               "@SP\n" +
+               "A=M\n" +
+               "D=M\n" +
+               "M=D+M\n" +
+               "@$MULTIPLY.LOOP\n" +
+               "0;JMP\n" +
+               "($MULTIPLY.END)\n" +
+               "@R15\n" +
+               "A=M\n" +
+               "0;JMP\n";
+    }
+
+    /**
+     * Shared divide routine. It expects the return address in D, keeps it in R15, and replaces
+     * the two topmost values x and y with x / y rounded toward zero, like Math.divide.
+     * The magnitudes are divided by restoring division, one bit of |x| in R13 at a time from
+     * the top, with |y| in R14. Above the stack are the remainder r, the sign of the result and
+     * the bit count. The remainder test 2r + bit >= |y| is done as r + bit - (|y| - r) >= 0,
+     * which cannot overflow. A divisor of -32768 has no magnitude in range and is handled apart:
+     * the quotient is 1 for a dividend of -32768, and also for 0 as Math.divide of the OS gives,
+     * and 0 otherwise. A divisor of 0 calls the real Math.divide, which reports the error.
+     * @return the assembly code
+     */
+    private static String divideRoutine() {
+        return "($DIVIDE)\n" +
+               "@R15\n" +
+               "M=D\n" +
+               "@SP\n" +
+               "A=M-1\n" +
+               "D=M\n" +
+               "@$DIVIDE.ZERO\n" +
+               "D;JEQ\n" +
+               "@SP\n" +
+               "AM=M-1\n" +
+               "D=M\n" +
+               "@R14\n" +
+               "M=D\n" +
+               "@SP\n" +
+               "A=M+1\n" +
+               "M=0\n" +
+               "@$DIVIDE.Y\n" +
+               "D;JGE\n" +
+               "@R14\n" +
+               "M=-M\n" +
+               "@SP\n" +
+               "A=M+1\n" +
+               "M=!M\n" +
+               "($DIVIDE.Y)\n" +
+               "@SP\n" +
+               "A=M-1\n" +
+               "D=M\n" +
+               "M=0\n" +
+               "@R13\n" +
+               "M=D\n" +
+               "@$DIVIDE.X\n" +
+               "D;JGE\n" +
+               "@R13\n" +
+               "M=-M\n" +
+               "@SP\n" +
+               "A=M+1\n" +
+               "M=!M\n" +
+               "($DIVIDE.X)\n" +
+               "@R14\n" +
+               "D=M\n" +
+               "@$DIVIDE.BIG\n" +
+               "D;JLT\n" +
+               "@SP\n" +
+               "A=M\n" +
+               "M=0\n" +
+               "@16\n" +
+               "D=A\n" +
+               "@SP\n" +
+               "A=M+1\n" +
+               "A=A+1\n" +
+               "M=D\n" +
+               "($DIVIDE.LOOP)\n" +
+               "@R13\n" +
+               "D=M\n" +
+               "M=D+M\n" +
+               "@$DIVIDE.ONE\n" +
+               "D;JLT\n" +
+               "@R14\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "A=M\n" +
+               "D=D-M\n" +
+               "D=M-D\n" +
+               "@$DIVIDE.TEST\n" +
+               "0;JMP\n" +
+               "($DIVIDE.ONE)\n" +
+               "@R14\n" +
+               "D=M\n" +
+               "@SP\n" +
+               "A=M\n" +
+               "D=D-M\n" +
+               "D=M-D\n" +
+               "D=D+1\n" +
+               "($DIVIDE.TEST)\n" +
+               "@$DIVIDE.FITS\n" +
+               "D;JGE\n" +
+               "@R14\n" +
+               "D=D+M\n" +
+               "@SP\n" +
+               "A=M\n" +
+               "M=D\n" +
+               "A=A-1\n" +
+               "D=M\n" +
+               "M=D+M\n" +
+               "@$DIVIDE.NEXT\n" +
+               "0;JMP\n" +
+               "($DIVIDE.FITS)\n" +
+               "@SP\n" +
+               "A=M\n" +
+               "M=D\n" +
+               "A=A-1\n" +
+               "D=M\n" +
+               "M=D+M\n" +
+               "M=M+1\n" +
+               "($DIVIDE.NEXT)\n" +
+               "@SP\n" +
+               "A=M+1\n" +
+               "A=A+1\n" +
+               "MD=M-1\n" +
+               "@$DIVIDE.LOOP\n" +
+               "D;JGT\n" +
+               "($DIVIDE.SIGN)\n" +
+               "@SP\n" +
+               "A=M+1\n" +
+               "D=M\n" +
+               "@$DIVIDE.END\n" +
+               "D;JEQ\n" +
+               "@SP\n" +
+               "A=M-1\n" +
+               "M=-M\n" +
+               "($DIVIDE.END)\n" +
+               "@R15\n" +
+               "A=M\n" +
+               "0;JMP\n" +
+               "($DIVIDE.BIG)\n" +
+               "@R13\n" +
+               "D=M\n" +
+               "@$DIVIDE.END\n" +
+               "D;JGT\n" +
+               "@SP\n" +
+               "A=M-1\n" +
+               "M=1\n" +
+               "@$DIVIDE.END\n" +
+               "0;JMP\n" +
+               "($DIVIDE.ZERO)\n" +
+               "@2\n" +
+               "D=A\n" +
+               "@R13\n" +
+               "M=D\n" +
+               "@Math.divide\n" +
+               "D=A\n" +
+               "@R14\n" +
+               "M=D\n" +
+               "@R15\n" +
+               "D=M\n" +
+               "@$CALL\n" +
+               "0;JMP\n";
+    }
+
+    /**
+     * Template for push local, this, that, argument, temp, pointer, static.
+     * @param load the "@segment / D=M" lines, or just "D=M" if the caller already wrote the address
+     * @param index the index in the segment
+     * @param isDirect whether this command is direct addressing
+     */
+    private void pushTemplate1(Asm.Template load, int index, boolean isDirect) {
+        // When it is a pointer, just read the data stored in THIS or THAT
+        // When it is static, just read the data stored in that address
+        put(load);
+        if (!isDirect) {
+            putA(index);
+            put(OFFSET_LOAD);
+        }
+        put(PUSH_D);
+    }
+
+    /**
+     * Template for pop local, this, that, argument. R13 holds the address while the value is popped.
+     * Temp, pointer and static are at fixed addresses and need no template.
+     * @param address the "@segment / D=M" lines that start the address computation
+     * @param index the index in the segment
+     */
+    private void popTemplate1(Asm.Template address, int index) {
+        put(address);
+        putA(index);
+        put(OFFSET_ADDRESS);
+        put(POP_TO_R13);
+    }
+
+    /**
+     * Appends a template, as pre-encoded text or as pre-decoded instructions.
+     * @param t the template to append
+     */
+    private void put(Asm.Template t) {
+        if (counting) {
+            lines += t.instructions + t.labels;
+            labels += t.labels;
+        }
+        if (sink != null) {
+            for (int ins : t.code) {
+                sink.add(ins);
+            }
+        } else {
+            words += t.instructions;
+            put(t.text);
+        }
+    }
+
+    /**
+     * Appends pre-encoded bytes to the output buffer.
+     * @param bytes the bytes to append
+     */
+    private void put(byte[] bytes) {
+        if (out.remaining() < bytes.length) {
+            flush();
+        }
+        out.put(bytes);
+    }
+
+    /**
+     * Appends an A-instruction that loads a number.
+     * @param n the number
+     */
+    private void putA(int n) {
+        if (counting) {
+            lines++;
+        }
+        if (sink != null) {
+            sink.add(Asm.NUMBER | n);
+            return;
+        }
+        words++;
+        put(AT);
+        putInt(n);
+        put(NEWLINE);
+    }
+
+    /**
+     * Appends a reference to or the definition of a generated label,
+     * i.e. the file prefix, the label name and the label number.
+     * @param name the encoded label name
+     * @param define true for the "(label)" definition, false for "@label"
+     */
+    private void putLabel(byte[] name, boolean define) {
+        if (counting) {
+            lines++;
+            if (define) {
+                labels++;
+            }
+        }
+        if (sink != null) {
+            int id = symbols.id(new String(labelPrefix, StandardCharsets.US_ASCII)
+                    + new String(name, StandardCharsets.US_ASCII) + arthJumpFlag);
+            sink.add((define ? Asm.LABEL : Asm.SYMBOL) | id);
+            return;
+        }
+        if (!define) {
+            words++;
+        }
+        put(define ? LABEL_START : AT);
+        put(labelPrefix);
+        put(name);
+        putInt(arthJumpFlag);
+        put(define ? LABEL_END : NEWLINE);
+    }
+
+    /**
+     * Appends an A-instruction that loads the address of a static variable,
+     * i.e. the file name and the index. The assembler allocates the variables.
+     * @param index the index in the static segment
+     */
+    private void putStatic(int index) {
+        if (counting) {
+            lines++;
+        }
+        if (sink != null) {
+            String name = new String(staticPrefix, StandardCharsets.US_ASCII) + index;
+            sink.add(Asm.SYMBOL | symbols.id(name));
+            return;
+        }
+        words++;
+        put(AT);
+        put(staticPrefix);
+        putInt(index);
+        put(NEWLINE);
+    }
+
+    /**
+     * Appends a reference to or the definition of a named symbol.
+     * @param name the symbol
+     * @param define true for the "(symbol)" definition, false for "@symbol"
+     */
+    private void putSymbol(String name, boolean define) {
+        if (counting) {
+            lines++;
+            if (define) {
+                labels++;
+            }
+        }
+        if (sink != null) {
+            sink.add((define ? Asm.LABEL : Asm.SYMBOL) | symbols.id(name));
+            return;
+        }
+        if (!define) {
+            words++;
+        }
+        put(define ? LABEL_START : AT);
+        put(bytes(name));
+        put(define ? LABEL_END : NEWLINE);
+    }
+
+    /**
+     * Prints one instruction of the IR as a line of text.
+     * @param ins the instruction
+     */
+    private void print(int ins) {
+        if (out.remaining() < Asm.maxLength(ins, symbols)) {
+            flush();
+        }
+        if (Asm.kind(ins) != Asm.LABEL) {
+            words++;
+        }
+        Asm.print(ins, symbols, out);
+    }
+
+    /**
+     * Appends the decimal digits of a number to the output buffer.
+     * @param n the number to append
+     */
+    private void putInt(int n) {
+        if (out.remaining() < 11) {
+            flush();
+        }
+        Asm.putInt(n, out);
+    }
+
+    /**
+     * Writes the buffered output to the output file.
+     */
+    private void flush() {
+        out.flip();
+        writeThrough(out);
+        out.clear();
+    }
+
+    /**
+     * Writes bytes straight to the output file, bypassing the buffer.
+     * @param bytes the bytes to write
+     */
+    private void writeThrough(ByteBuffer bytes) {
+        try {
+            flushed += bytes.remaining();
+            while (bytes.hasRemaining() && outChannel != null) {
+                outChannel.write(bytes);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write output: " + e.getMessage());
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
+
+    /**
+     * A small instruction IR for Hack assembly, used by the optimizations that need to
+     * look at the generated code. Every line is one int, and its two high bits tell
+     * the kinds apart: a C-instruction holds its 16-bit machine code, an A-instruction
+     * a number or a symbol id, and a label definition a symbol id.
+     */
+    static class Asm {
+        static final int C = 0;
+        static final int NUMBER = 1 << 30;
+        static final int SYMBOL = 2 << 30;
+        static final int LABEL = 3 << 30;
+        private static final int KIND = 3 << 30;
+
+        // Destination bits of a C-instruction
+        static final int DEST_A = 0x20;
+        static final int DEST_D = 0x10;
+        static final int DEST_M = 0x08;
+
+        private static final String[] COMPS = {
+            "0", "1", "-1", "D", "A", "!D", "!A", "-D", "-A", "D+1", "A+1", "D-1", "A-1",
+            "D+A", "D-A", "A-D", "D&A", "D|A",
+            "M", "!M", "-M", "M+1", "M-1", "D+M", "D-M", "M-D", "D&M", "D|M"
+        };
+        private static final int[] COMP_CODES = {
+            0b0101010, 0b0111111, 0b0111010, 0b0001100, 0b0110000, 0b0001101, 0b0110001,
+            0b0001111, 0b0110011, 0b0011111, 0b0110111, 0b0001110, 0b0110010,
+            0b0000010, 0b0010011, 0b0000111, 0b0000000, 0b0010101,
+            0b1110000, 0b1110001, 0b1110011, 0b1110111, 0b1110010, 0b1000010, 0b1010011,
+            0b1000111, 0b1000000, 0b1010101
+        };
+        private static final String[] DESTS = {"", "M", "D", "MD", "A", "AM", "AD", "AMD"};
+        private static final String[] JUMPS = {"", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+
+        // The text of every C-instruction, indexed by the low 13 bits of its machine code
+        private static final byte[][] LINES = new byte[1 << 13][];
+        private static final boolean[] READS_D = new boolean[1 << 7];
+
+        static {
+            for (int i = 0; i < COMPS.length; i++) {
+                READS_D[COMP_CODES[i]] = COMPS[i].indexOf('D') != -1;
+                for (int dest = 0; dest < DESTS.length; dest++) {
+                    for (int jump = 0; jump < JUMPS.length; jump++) {
+                        String line = (dest == 0 ? "" : DESTS[dest] + "=") + COMPS[i]
+                                + (jump == 0 ? "" : ";" + JUMPS[jump]) + "\n";
+                        LINES[COMP_CODES[i] << 6 | dest << 3 | jump] = line.getBytes(StandardCharsets.US_ASCII);
+                    }
+                }
+            }
+        }
+
+        // The symbols used by the templates, filled while the templates are built
+        static final Symbols BUILTIN = new Symbols(null);
+
+        /**
+         * Receives instructions.
+         */
+        interface Sink {
+            void add(int ins);
+        }
+
+        /**
+         * Maps symbol names to ids. A table with a parent first looks names up in the parent,
+         * and numbers its own symbols from LOCAL_BASE so it can be cleared on its own.
+         */
+        static class Symbols {
+            static final int LOCAL_BASE = 1 << 24;
+            private final Symbols parent;
+            private final int base;
+            private final ArrayList<byte[]> names = new ArrayList<>();
+            private final HashMap<String, Integer> ids = new HashMap<>();
+
+            Symbols(Symbols parent) {
+                this.parent = parent;
+                this.base = parent == null ? 0 : LOCAL_BASE;
+            }
+
+            /**
+             * Returns the id of a symbol, adding it if it is new.
+             * @param name the symbol
+             * @return the id
+             */
+            synchronized int id(String name) {
+                if (parent != null) {
+                    int id = parent.find(name);
+                    if (id != -1) {
+                        return id;
+                    }
+                }
+                Integer id = ids.get(name);
+                if (id == null) {
+                    id = base + names.size();
+                    names.add(name.getBytes(StandardCharsets.US_ASCII));
+                    ids.put(name, id);
+                }
+                return id;
+            }
+
+            private synchronized int find(String name) {
+                Integer id = ids.get(name);
+                return id == null ? -1 : id;
+            }
+
+            /**
+             * Returns the encoded name of a symbol.
+             * @param id the id
+             * @return the name
+             */
+            synchronized byte[] name(int id) {
+                return id < base ? parent.name(id) : names.get(id - base);
+            }
+
+            /**
+             * Forgets every symbol of this table, but not those of the parent.
+             */
+            synchronized void clear() {
+                names.clear();
+                ids.clear();
+            }
+        }
+
+        /**
+         * A fixed piece of code, kept both as text and as instructions.
+         */
+        static class Template {
+            final byte[] text;
+            final int[] code;
+            final int instructions;
+            final int labels;
+
+            Template(String text) {
+                this.text = text.getBytes(StandardCharsets.US_ASCII);
+                String[] lines = text.split("\n");
+                code = new int[lines.length];
+                int labels = 0;
+                for (int i = 0; i < lines.length; i++) {
+                    code[i] = parse(lines[i], BUILTIN);
+                    if (kind(code[i]) == LABEL) {
+                        labels++;
+                    }
+                }
+                this.labels = labels;
+                this.instructions = lines.length - labels;
+            }
+        }
+
+        static int kind(int ins) {
+            return ins & KIND;
+        }
+
+        static int value(int ins) {
+            return ins & ~KIND;
+        }
+
+        static boolean isAddress(int ins) {
+            int kind = kind(ins);
+            return kind == NUMBER || kind == SYMBOL;
+        }
+
+        static int dest(int ins) {
+            return ins & 0x38;
+        }
+
+        static int jump(int ins) {
+            return ins & 0x7;
+        }
+
+        /**
+         * Tells whether the computation of a C-instruction reads D.
+         * @param ins the C-instruction
+         * @return true if it reads D
+         */
+        static boolean readsD(int ins) {
+            return READS_D[(ins >> 6) & 0x7F];
+        }
+
+        /**
+         * Decodes one line of Hack assembly.
+         * @param line the line, without comments or spaces
+         * @param symbols where to look up the symbols
+         * @return the instruction
+         */
+        static int parse(String line, Symbols symbols) {
+            if (line.startsWith("(") && line.endsWith(")")) {
+                return LABEL | symbols.id(line.substring(1, line.length() - 1));
+            }
+            if (line.startsWith("@")) {
+                String operand = line.substring(1);
+                if (!operand.isEmpty() && Character.isDigit(operand.charAt(0))) {
+                    return NUMBER | Integer.parseInt(operand);
+                }
+                return SYMBOL | symbols.id(operand);
+            }
+            int eq = line.indexOf('=');
+            int semi = line.indexOf(';');
+            int dest = eq == -1 ? 0 : Arrays.asList(DESTS).indexOf(line.substring(0, eq));
+            int comp = Arrays.asList(COMPS).indexOf(line.substring(eq + 1, semi == -1 ? line.length() : semi));
+            int jump = semi == -1 ? 0 : Arrays.asList(JUMPS).indexOf(line.substring(semi + 1));
+            if (dest <= 0 && eq != -1 || comp == -1 || jump <= 0 && semi != -1) {
+                throw new IllegalArgumentException("Invalid instruction: " + line);
+            }
+            return 0xE000 | COMP_CODES[comp] << 6 | dest << 3 | jump;
+        }
+
+        /**
+         * Returns the most bytes print() writes for an instruction.
+         * @param ins the instruction
+         * @param symbols where to look up the symbols
+         * @return the number of bytes
+         */
+        static int maxLength(int ins, Symbols symbols) {
+            switch (kind(ins)) {
+                case C:
+                    return 16;
+                case NUMBER:
+                    return 13;
+                default:
+                    return symbols.name(value(ins)).length + 3;
+            }
+        }
+
+        /**
+         * Writes an instruction as one line of text.
+         * @param ins the instruction
+         * @param symbols where to look up the symbols
+         * @param out the buffer, which must have room for maxLength() bytes
+         */
+        static void print(int ins, Symbols symbols, ByteBuffer out) {
+            switch (kind(ins)) {
+                case C:
+                    out.put(LINES[ins & 0x1FFF]);
                     break;
-                case "that":
-                    outPrinter.print(pushTemplate1("THAT", index, false));
+                case NUMBER:
+                    out.put((byte) '@');
+                    putInt(value(ins), out);
+                    out.put((byte) '\n');
                     break;
-                case "temp":
-                    outPrinter.print(pushTemplate1("R5", index + 5, false));
+                case SYMBOL:
+                    out.put((byte) '@').put(symbols.name(value(ins))).put((byte) '\n');
                     break;
-                case "pointer":
-                    if (index == 0) {
-                        outPrinter.print(pushTemplate1("THIS", index, true));
-                    } else if (index == 1) {
-                        outPrinter.print(pushTemplate1("THAT", index, true));
+                default:
+                    out.put((byte) '(').put(symbols.name(value(ins))).put((byte) ')').put((byte) '\n');
+            }
+        }
+
+        /**
+         * Appends the decimal digits of a number to a buffer, which must have room for them.
+         * @param n the number to append
+         * @param out the buffer
+         */
+        static void putInt(int n, ByteBuffer out) {
+            if (n < 0) {
+                out.put((byte) '-');
+                n = -n;
+            }
+            int digits = 1;
+            for (int rest = n / 10; rest != 0; rest /= 10) {
+                digits++;
+            }
+            int end = out.position() + digits;
+            for (int i = end - 1; i >= out.position(); i--) {
+                out.put(i, (byte) ('0' + n % 10));
+                n /= 10;
+            }
+            out.position(end);
+        }
+    }
+
+    /**
+     * Two-pass Hack assembler over the instruction IR, so the ROM image is written without
+     * going through assembly text. The first pass keeps the instructions with every symbol
+     * replaced by its number in an open-addressing table of names, and sets the address of
+     * each label as it comes. The second pass gives the undefined symbols variable addresses
+     * from 16 in order of appearance, like the Hack assembler, and encodes the instructions.
+     * The instructions of the first pass are also the object code of a fragment, which
+     * another Assembler takes in with replay().
+     */
+    public static class Assembler implements Asm.Sink {
+        static final int ROM_SIZE = 1 << 15;
+        static final int VARIABLE_BASE = 16;
+        private static final int UNDEFINED = -1;
+        private static final int BUFFER_SIZE = 1 << 16;
+        private static final String[] PREDEFINED = {
+            "SP", "LCL", "ARG", "THIS", "THAT", "SCREEN", "KBD"
+        };
+        private static final int[] PREDEFINED_ADDRESSES = {0, 1, 2, 3, 4, 16384, 24576};
+        // The 8 binary digits of every byte
+        private static final byte[][] BITS = new byte[256][8];
+
+        static {
+            for (int b = 0; b < 256; b++) {
+                for (int i = 0; i < 8; i++) {
+                    BITS[b][i] = (byte) ((b & 0x80 >> i) == 0 ? '0' : '1');
+                }
+            }
+        }
+
+        private final Asm.Symbols symbols;
+        // Symbol number + 1 in every used slot, 0 in the free ones
+        private int[] table = new int[1 << 10];
+        private final ArrayList<byte[]> names = new ArrayList<>();
+        private int[] addresses = new int[1 << 9];
+        private int[] code = new int[1 << 12];
+        private int size;
+        private int pc;
+
+        /**
+         * @param symbols the names of the symbol ids in the instructions added
+         */
+        public Assembler(Asm.Symbols symbols) {
+            this.symbols = symbols;
+            for (int i = 0; i < PREDEFINED.length; i++) {
+                addresses[symbol(PREDEFINED[i].getBytes(StandardCharsets.US_ASCII))] = PREDEFINED_ADDRESSES[i];
+            }
+            for (int i = 0; i < 16; i++) {
+                addresses[symbol(("R" + i).getBytes(StandardCharsets.US_ASCII))] = i;
+            }
+        }
+
+        /**
+         * First pass over one instruction.
+         * @param ins the instruction
+         */
+        public void add(int ins) {
+            int kind = Asm.kind(ins);
+            if (kind == Asm.SYMBOL || kind == Asm.LABEL) {
+                int symbol = symbol(symbols.name(Asm.value(ins)));
+                if (kind == Asm.LABEL) {
+                    if (addresses[symbol] != UNDEFINED) {
+                        throw new IllegalStateException("Label defined twice: " + name(symbol));
+                    }
+                    addresses[symbol] = pc;
+                    pc--;
+                }
+                ins = kind | symbol;
+            }
+            if (size == code.length) {
+                code = Arrays.copyOf(code, size * 2);
+            }
+            code[size++] = ins;
+            pc++;
+        }
+
+        /**
+         * Returns the number of instructions added, i.e. the words of ROM the program takes.
+         * @return the number of instructions, labels excluded
+         */
+        public int words() {
+            return pc;
+        }
+
+        /**
+         * Looks up a symbol in the table, adding it if it is new.
+         * @param name the encoded name
+         * @return the number of the symbol
+         */
+        private int symbol(byte[] name) {
+            int mask = table.length - 1;
+            int hash = Arrays.hashCode(name);
+            for (int i = (hash ^ hash >>> 16) & mask; ; i = (i + 1) & mask) {
+                int entry = table[i];
+                if (entry == 0) {
+                    int symbol = names.size();
+                    names.add(name);
+                    if (symbol == addresses.length) {
+                        addresses = Arrays.copyOf(addresses, symbol * 2);
+                    }
+                    addresses[symbol] = UNDEFINED;
+                    table[i] = symbol + 1;
+                    // Kept at most half full, so the probe sequences stay short
+                    if (names.size() * 2 > table.length) {
+                        rehash();
+                    }
+                    return symbol;
+                }
+                if (Arrays.equals(names.get(entry - 1), name)) {
+                    return entry - 1;
+                }
+            }
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+            for (int symbol = 0; symbol < names.size(); symbol++) {
+                int hash = Arrays.hashCode(names.get(symbol));
+                int i = (hash ^ hash >>> 16) & mask;
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = symbol + 1;
+            }
+        }
+
+        private String name(int symbol) {
+            return new String(names.get(symbol), StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Second pass: resolves the symbols and writes the ROM image, one instruction per line
+         * as 16 binary digits.
+         * @param channel where to write the image
+         * @throws IOException if the image cannot be written
+         */
+        public void writeHack(WritableByteChannel channel) throws IOException {
+            if (pc > ROM_SIZE) {
+                throw new IllegalStateException("The program takes " + pc + " words, the ROM only has " + ROM_SIZE);
+            }
+            ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+            int variable = VARIABLE_BASE;
+            for (int i = 0; i < size; i++) {
+                int ins = code[i];
+                int word;
+                switch (Asm.kind(ins)) {
+                    case Asm.LABEL:
+                        continue;
+                    case Asm.C:
+                        word = ins & 0xFFFF;
+                        break;
+                    case Asm.NUMBER:
+                        word = Asm.value(ins);
+                        break;
+                    default:
+                        int symbol = Asm.value(ins);
+                        if (addresses[symbol] == UNDEFINED) {
+                            addresses[symbol] = variable++;
+                        }
+                        word = addresses[symbol];
+                }
+                if (Asm.kind(ins) != Asm.C && word >= ROM_SIZE) {
+                    throw new IllegalStateException("Address out of range: " + word);
+                }
+                if (out.remaining() < 17) {
+                    drain(out, channel);
+                }
+                out.put(BITS[word >>> 8]).put(BITS[word & 0xFF]).put((byte) '\n');
+            }
+            drain(out, channel);
+        }
+
+        /**
+         * Writes the instructions of the first pass as object code: the number of symbols,
+         * the length and bytes of every name, the number of instructions and the instructions.
+         * @param channel where to write the object code
+         * @throws IOException if the object code cannot be written
+         */
+        public void writeObject(WritableByteChannel channel) throws IOException {
+            int length = 8 + 4 * size;
+            for (byte[] name : names) {
+                length += 2 + name.length;
+            }
+            ByteBuffer out = ByteBuffer.allocate(length);
+            out.putInt(names.size());
+            for (byte[] name : names) {
+                out.putShort((short) name.length).put(name);
+            }
+            out.putInt(size);
+            for (int i = 0; i < size; i++) {
+                out.putInt(code[i]);
+            }
+            drain(out, channel);
+        }
+
+        /**
+         * Hands the instructions of object code on, with the symbols renumbered to the ids of a table.
+         * @param object the object code written by writeObject()
+         * @param symbols the table
+         * @param sink where the instructions go
+         */
+        public static void replay(byte[] object, Asm.Symbols symbols, Asm.Sink sink) {
+            ByteBuffer in = ByteBuffer.wrap(object);
+            int[] ids = new int[in.getInt()];
+            for (int i = 0; i < ids.length; i++) {
+                byte[] name = new byte[in.getShort()];
+                in.get(name);
+                ids[i] = symbols.id(new String(name, StandardCharsets.US_ASCII));
+            }
+            for (int n = in.getInt(); n > 0; n--) {
+                int ins = in.getInt();
+                int kind = Asm.kind(ins);
+                sink.add(kind == Asm.SYMBOL || kind == Asm.LABEL ? kind | ids[Asm.value(ins)] : ins);
+            }
+        }
+
+        private static void drain(ByteBuffer out, WritableByteChannel channel) throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.clear();
+        }
+    }
+
+    /**
+     * Maps ROM addresses back to the VM commands they were translated from. It sits in the
+     * instruction IR right before the output, counts the instructions going through, and
+     * starts a new range wherever the source changes. The map is written in a binary format
+     * that can be binary-searched by address, all numbers big-endian:
+     * <pre>
+     * int magic "VMTS", int words of ROM covered
+     * int name count, then every name as a short length and ASCII bytes
+     * int range count, then every range as int start address, int line, short file, short function
+     * </pre>
+     * A range ends where the next one starts. File and function are indexes of names, and -1
+     * where there is none: the bootstrap and the shared routines have no file, the code
+     * outside any function has no function.
+     */
+    public static class SourceMap implements Asm.Sink {
+        static final int NONE = -1;
+        static final int MAGIC = 0x564D5453;
+        static final int RANGE_SIZE = 12;
+        private final Asm.Sink next;
+        private final ArrayList<String> names = new ArrayList<>();
+        private final HashMap<String, Integer> ids = new HashMap<>();
+        // Every source marked, file, line and function
+        private int[] marks = new int[3 * 256];
+        private int markCount;
+        // Every range, start, line, file and function
+        private int[] ranges = new int[4 * 256];
+        private int rangeCount;
+        private int current = NONE;
+        private boolean started;
+        private int words;
+
+        /**
+         * @param next where the instructions go
+         */
+        public SourceMap(Asm.Sink next) {
+            this.next = next;
+        }
+
+        /**
+         * Returns the sink the instructions go to.
+         * @return the next sink
+         */
+        public Asm.Sink next() {
+            return next;
+        }
+
+        /**
+         * Records a source.
+         * @param file the .vm file name
+         * @param line the line number
+         * @param function the function, or null
+         * @return the mark, for at()
+         */
+        public int mark(String file, int line, String function) {
+            if (3 * markCount == marks.length) {
+                marks = Arrays.copyOf(marks, marks.length * 2);
+            }
+            marks[3 * markCount] = id(file);
+            marks[3 * markCount + 1] = line;
+            marks[3 * markCount + 2] = function == null ? NONE : id(function);
+            return markCount++;
+        }
+
+        /**
+         * Sets the source of the instructions added from now on.
+         * @param mark a mark returned by mark(), or NONE
+         */
+        public void at(int mark) {
+            if (mark != current) {
+                current = mark;
+                started = false;
+            }
+        }
+
+        @Override
+        public void add(int ins) {
+            if (Asm.kind(ins) != Asm.LABEL) {
+                if (!started) {
+                    started = true;
+                    if (current == NONE) {
+                        range(words, 0, NONE, NONE);
+                    } else {
+                        range(words, marks[3 * current + 1], marks[3 * current], marks[3 * current + 2]);
+                    }
+                }
+                words++;
+            }
+            next.add(ins);
+        }
+
+        /**
+         * Adds a range, unless the last one has the same source.
+         */
+        private void range(int start, int line, int file, int function) {
+            int last = 4 * (rangeCount - 1);
+            if (rangeCount > 0 && ranges[last + 1] == line && ranges[last + 2] == file && ranges[last + 3] == function) {
+                return;
+            }
+            if (4 * rangeCount == ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            ranges[4 * rangeCount] = start;
+            ranges[4 * rangeCount + 1] = line;
+            ranges[4 * rangeCount + 2] = file;
+            ranges[4 * rangeCount + 3] = function;
+            rangeCount++;
+        }
+
+        private int id(String name) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                names.add(name);
+                ids.put(name, id);
+            }
+            return id;
+        }
+
+        /**
+         * Appends the map of a fragment whose code was just appended, after the code so far.
+         * @param map the map of the fragment, as written by toBytes()
+         */
+        public void append(byte[] map) {
+            ByteBuffer in = ByteBuffer.wrap(map);
+            if (in.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a source map");
+            }
+            int base = words;
+            words += in.getInt();
+            int[] renumber = new int[in.getInt()];
+            for (int i = 0; i < renumber.length; i++) {
+                byte[] name = new byte[in.getShort()];
+                in.get(name);
+                renumber[i] = id(new String(name, StandardCharsets.US_ASCII));
+            }
+            for (int n = in.getInt(); n > 0; n--) {
+                int start = in.getInt();
+                int line = in.getInt();
+                int file = in.getShort();
+                int function = in.getShort();
+                range(base + start, line, file == NONE ? NONE : renumber[file], function == NONE ? NONE : renumber[function]);
+            }
+            // Whatever comes next starts a range of its own
+            current = NONE;
+            started = false;
+        }
+
+        /**
+         * Encodes the map.
+         * @return the map in the binary format
+         */
+        public byte[] toBytes() {
+            int length = 16 + RANGE_SIZE * rangeCount;
+            ArrayList<byte[]> encoded = new ArrayList<>();
+            for (String name : names) {
+                byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+                encoded.add(bytes);
+                length += 2 + bytes.length;
+            }
+            ByteBuffer out = ByteBuffer.allocate(length);
+            out.putInt(MAGIC).putInt(words).putInt(names.size());
+            for (byte[] name : encoded) {
+                out.putShort((short) name.length).put(name);
+            }
+            out.putInt(rangeCount);
+            for (int i = 0; i < rangeCount; i++) {
+                out.putInt(ranges[4 * i]).putInt(ranges[4 * i + 1])
+                        .putShort((short) ranges[4 * i + 2]).putShort((short) ranges[4 * i + 3]);
+            }
+            return out.array();
+        }
+
+        /**
+         * Finds the source of a ROM address in an encoded map, by binary search over the ranges.
+         * @param map the map, as written by toBytes()
+         * @param address the ROM address
+         * @return "file:line function", or null if the address has no source
+         */
+        public static String find(byte[] map, int address) {
+            ByteBuffer in = ByteBuffer.wrap(map);
+            if (in.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a source map");
+            }
+            int words = in.getInt();
+            String[] names = new String[in.getInt()];
+            for (int i = 0; i < names.length; i++) {
+                byte[] name = new byte[in.getShort()];
+                in.get(name);
+                names[i] = new String(name, StandardCharsets.US_ASCII);
+            }
+            int count = in.getInt();
+            int first = in.position();
+            // The last range that starts at or before the address
+            int low = 0;
+            int high = count - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (in.getInt(first + RANGE_SIZE * mid) <= address) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (found == -1 || address >= words) {
+                return null;
+            }
+            int at = first + RANGE_SIZE * found;
+            int file = in.getShort(at + 8);
+            int function = in.getShort(at + 10);
+            if (file == NONE) {
+                return null;
+            }
+            return names[file] + ":" + in.getInt(at + 4) + (function == NONE ? "" : " " + names[function]);
+        }
+    }
+
+    /**
+     * Peephole optimizer over the instruction IR. It keeps the last instructions in a
+     * sliding window and rewrites the end of the window with a table of rules until
+     * none applies. No rule matches across a label, so jumps into the window are safe.
+     * The rules rely on three properties of the generated code: SP always points above
+     * address 255, no pointer that is read or written through is null, and a stack cell
+     * at or above SP is never read before it is written, so a store there is dead unless
+     * SP is incremented right after it.
+     */
+    public static class Peephole implements Asm.Sink {
+
+        /**
+         * The rewrite rules.
+         */
+        public static enum Rule {
+            // @X, C, @X  ->  @X, C  when C does not change A
+            SAME_A,
+            // M=M+1, AM=M-1  ->  A=M, and M=M+1, M=M-1 cancel out;
+            // also @SP, M=M+1, ..., @SP, AM=M-1  ->  ..., @SP, A=M  over straight-line code that leaves SP alone
+            INC_DEC,
+            // M=D, D=M  ->  M=D, and D=M, M=D  ->  D=M
+            RELOAD,
+            // @SP, A=M, C, @SP, A=M  ->  @SP, A=M, C  when C does not change A
+            SP_READDRESS,
+            // @SP, A=M, M=D, A=A-1  ->  @SP, A=M-1, and @SP, A=M, M=D, @X  ->  @X
+            DEAD_TOP_STORE,
+            // D=..., [@X,] D=...  ->  [@X,] D=...  when the second one does not read D
+            DEAD_D
+        }
+
+        private static final int WINDOW = 16;
+        private static final int SP = Asm.parse("@SP", Asm.BUILTIN);
+        private static final int ZERO = Asm.parse("@0", Asm.BUILTIN);
+        private static final int A_M = Asm.parse("A=M", Asm.BUILTIN);
+        private static final int A_M_DEC = Asm.parse("A=M-1", Asm.BUILTIN);
+        private static final int A_DEC = Asm.parse("A=A-1", Asm.BUILTIN);
+        private static final int AM_DEC = Asm.parse("AM=M-1", Asm.BUILTIN);
+        private static final int M_INC = Asm.parse("M=M+1", Asm.BUILTIN);
+        private static final int M_DEC = Asm.parse("M=M-1", Asm.BUILTIN);
+        private static final int M_D = Asm.parse("M=D", Asm.BUILTIN);
+        private static final int D_M = Asm.parse("D=M", Asm.BUILTIN);
+
+        private final Asm.Sink next;
+        private final int[] window = new int[4 * WINDOW];
+        private int size;
+        private long in;
+        private long out;
+        private final long[] hits = new long[Rule.values().length];
+        // Source of every instruction in the window, only with a source map
+        private SourceMap sources;
+        private int[] tags;
+        private int tag = SourceMap.NONE;
+
+        /**
+         * @param next where the optimized instructions go
+         */
+        public Peephole(Asm.Sink next) {
+            this.next = next;
+        }
+
+        /**
+         * Keeps the source of every instruction in the window, and tells it to the source map
+         * before passing the instruction on. A rewritten sequence takes the source of its first instruction.
+         * @param sources the source map, which must be the next sink
+         */
+        public void setSourceMap(SourceMap sources) {
+            this.sources = sources;
+            tags = new int[window.length];
+        }
+
+        /**
+         * Sets the source of the instructions added from now on.
+         * @param tag the mark of the source, see SourceMap.mark()
+         */
+        public void tag(int tag) {
+            this.tag = tag;
+        }
+
+        @Override
+        public void add(int ins) {
+            if (Asm.kind(ins) != Asm.LABEL) {
+                in++;
+            }
+            if (size == window.length) {
+                emit(size - WINDOW);
+            }
+            if (tags != null) {
+                tags[size] = tag;
+            }
+            window[size++] = ins;
+            // A rewrite can create new matches that end anywhere after where it started
+            int end = size - 1;
+            while (end < size) {
+                int start = rewrite(end);
+                end = start == -1 ? end + 1 : start;
+            }
+        }
+
+        /**
+         * Passes every instruction still in the window on.
+         */
+        public void flush() {
+            emit(size);
+        }
+
+        /**
+         * Returns the number of instructions received, labels excluded.
+         * @return the number of instructions before optimization
+         */
+        public long in() {
+            return in;
+        }
+
+        /**
+         * Returns the number of instructions passed on, labels excluded.
+         * @return the number of instructions after optimization
+         */
+        public long out() {
+            return out;
+        }
+
+        /**
+         * Returns how many times every rule was applied.
+         * @return the number of hits, indexed by Rule ordinal
+         */
+        public long[] hits() {
+            return hits.clone();
+        }
+
+        /**
+         * Applies the first rule whose pattern ends at the given position.
+         * @param end the position of the last instruction of the pattern
+         * @return the position where the rewritten code starts, or -1 if no rule applies
+         */
+        private int rewrite(int end) {
+            int last = window[end];
+
+            if (Asm.isAddress(last) && matches(end - 2, last, -1) && isSimple(window[end - 1])) {
+                return replace(Rule.SAME_A, end - 2, 3, window[end - 2], window[end - 1]);
+            }
+            if (matches(end - 1, M_INC, AM_DEC)) {
+                return replace(Rule.INC_DEC, end - 1, 2, A_M);
+            }
+            if (matches(end - 1, M_INC, M_DEC) || matches(end - 1, M_DEC, M_INC)) {
+                return replace(Rule.INC_DEC, end - 1, 2);
+            }
+            if (last == AM_DEC && end >= 3 && window[end - 1] == SP) {
+                int start = incrementBefore(end - 2);
+                if (start != -1) {
+                    int[] code = Arrays.copyOfRange(window, start + 1, end + 1);
+                    code[code.length - 1] = A_M;
+                    return replace(Rule.INC_DEC, start - 1, end - start + 2, code);
+                }
+            }
+            if (matches(end - 1, M_D, D_M)) {
+                return replace(Rule.RELOAD, end - 1, 2, M_D);
+            }
+            if (matches(end - 1, D_M, M_D)) {
+                return replace(Rule.RELOAD, end - 1, 2, D_M);
+            }
+            if (matches(end - 4, SP, A_M, -1, SP, A_M) && isSimple(window[end - 2])) {
+                return replace(Rule.SP_READDRESS, end - 4, 5, SP, A_M, window[end - 2]);
+            }
+            if (matches(end - 3, SP, A_M, M_D, A_DEC) && !addressesSP(end + 1)) {
+                return replace(Rule.DEAD_TOP_STORE, end - 3, 4, SP, A_M_DEC);
+            }
+            if (Asm.isAddress(last) && last != SP && matches(end - 3, SP, A_M, M_D) && !addressesSP(end + 1)) {
+                return replace(Rule.DEAD_TOP_STORE, end - 3, 4, last);
+            }
+            if (Asm.kind(last) == Asm.C && (Asm.dest(last) & Asm.DEST_D) != 0 && !Asm.readsD(last)) {
+                if (end >= 1 && isDeadD(window[end - 1])) {
+                    return replace(Rule.DEAD_D, end - 1, 2, last);
+                }
+                if (end >= 2 && Asm.isAddress(window[end - 1]) && isDeadD(window[end - 2])) {
+                    return replace(Rule.DEAD_D, end - 2, 3, window[end - 1], last);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Tells whether the window holds the given instructions from a position on.
+         * @param start the position of the first instruction
+         * @param pattern the instructions, where -1 matches any C-instruction
+         * @return true if they match
+         */
+        private boolean matches(int start, int... pattern) {
+            if (start < 0) {
+                return false;
+            }
+            for (int i = 0; i < pattern.length; i++) {
+                int ins = window[start + i];
+                if (pattern[i] == -1 ? Asm.kind(ins) != Asm.C : ins != pattern[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Looks back for an "@SP, M=M+1" pair, over code that neither jumps nor addresses SP.
+         * The code must start with an A-instruction. It may then read or write memory through
+         * pointers, which never point at SP.
+         * @param from the position of the last instruction to look at
+         * @return the position of the M=M+1, or -1 if there is none
+         */
+        private int incrementBefore(int from) {
+            for (int i = from; i >= 1; i--) {
+                int ins = window[i];
+                if (ins == M_INC && window[i - 1] == SP) {
+                    // A still points at SP until the code sets it
+                    return Asm.isAddress(window[i + 1]) ? i : -1;
+                }
+                boolean ok = Asm.kind(ins) == Asm.C ? Asm.jump(ins) == 0 : Asm.isAddress(ins) && ins != SP && ins != ZERO;
+                if (!ok) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Tells whether SP is addressed from a position to the end of the window.
+         * A store above the top of the stack is only dead if nothing after it reads it back,
+         * which INC_DEC may have arranged.
+         * @param from the first position to look at
+         * @return true if there is an @SP
+         */
+        private boolean addressesSP(int from) {
+            for (int i = from; i < size; i++) {
+                if (window[i] == SP) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * A C-instruction that neither changes A nor jumps.
+         */
+        private static boolean isSimple(int ins) {
+            return Asm.kind(ins) == Asm.C && (Asm.dest(ins) & Asm.DEST_A) == 0 && Asm.jump(ins) == 0;
+        }
+
+        /**
+         * A C-instruction whose only effect is to set D.
+         */
+        private static boolean isDeadD(int ins) {
+            return Asm.kind(ins) == Asm.C && Asm.dest(ins) == Asm.DEST_D && Asm.jump(ins) == 0;
+        }
+
+        private int replace(Rule rule, int start, int length, int... code) {
+            hits[rule.ordinal()]++;
+            if (tags != null) {
+                int first = tags[start];
+                System.arraycopy(tags, start + length, tags, start + code.length, size - start - length);
+                Arrays.fill(tags, start, start + code.length, first);
+            }
+            System.arraycopy(window, start + length, window, start + code.length, size - start - length);
+            System.arraycopy(code, 0, window, start, code.length);
+            size += code.length - length;
+            return start;
+        }
+
+        private void emit(int n) {
+            for (int i = 0; i < n; i++) {
+                if (Asm.kind(window[i]) != Asm.LABEL) {
+                    out++;
+                }
+                if (sources != null) {
+                    sources.at(tags[i]);
+                }
+                next.add(window[i]);
+            }
+            if (tags != null) {
+                System.arraycopy(tags, n, tags, 0, size - n);
+            }
+            System.arraycopy(window, n, window, 0, size - n);
+            size -= n;
+        }
+    }
+
+    /**
+     * Superinstruction fusion. Compiled Jack repeats a handful of command sequences all the time,
+     * so the decoded commands pass through a small sliding window, and a sequence that matches
+     * a pattern goes to a single Writer method with hand-tuned code instead of being translated
+     * command by command. Commands that are not part of a pattern go to the Writer one by one.
+     * No pattern contains a label, so no jump lands in the middle of a fused sequence.
+     */
+    public static class Fusion {
+
+        /**
+         * The patterns, tried in this order.
+         */
+        public static enum Pattern {
+            // push X, push Y, add, pop pointer 1, push that 0  ->  load X[Y] through THAT
+            ARRAY_READ(5),
+            // push S i, push constant c, add|sub, pop S i  ->  change S[i] in place
+            INCREMENT(4),
+            // pop temp t, pop pointer 1, push temp t, pop that 0  ->  store through THAT
+            ARRAY_WRITE(4),
+            // push X, pop Y  ->  copy without going through the stack
+            MOVE(2);
+
+            final int length;
+
+            Pattern(int length) {
+                this.length = length;
+            }
+        }
+
+        private static final int WINDOW = 5;
+        private final Writer writer;
+        private final Lex.Command[] window = new Lex.Command[WINDOW];
+        // The kind of command the code of every window entry is charged to
+        private final int[] owners = new int[WINDOW];
+        private int size;
+        private final long[] hits = new long[Pattern.values().length];
+
+        /**
+         * @param writer where the commands go
+         */
+        public Fusion(Writer writer) {
+            this.writer = writer;
+            for (int i = 0; i < WINDOW; i++) {
+                window[i] = new Lex.Command();
+            }
+        }
+
+        /**
+         * Takes the next command. It is written once it is known not to start a pattern.
+         * @param cmd the command, copied
+         * @param owner the kind of command its code is charged to, see Writer.charge()
+         */
+        public void add(Lex.Command cmd, int owner) {
+            owners[size] = owner;
+            window[size++].set(cmd);
+            drain(false);
+        }
+
+        /**
+         * Writes every command still in the window.
+         */
+        public void flush() {
+            drain(true);
+        }
+
+        /**
+         * Returns how many times every pattern was fused.
+         * @return the number of hits, indexed by Pattern ordinal
+         */
+        public long[] hits() {
+            return hits.clone();
+        }
+
+        /**
+         * Writes the commands at the start of the window for as long as they cannot start a pattern.
+         * @param all true to write everything, even the start of a pattern that is not complete
+         */
+        private void drain(boolean all) {
+            next:
+            while (size > 0) {
+                boolean prefix = false;
+                for (Pattern p : Pattern.values()) {
+                    if (matches(p)) {
+                        if (size >= p.length) {
+                            writer.charge(owners[0]);
+                            fuse(p);
+                            shift(p.length);
+                            continue next;
+                        }
+                        prefix = true;
+                    }
+                }
+                if (prefix && !all) {
+                    return;
+                }
+                writer.charge(owners[0]);
+                write(window[0], writer);
+                shift(1);
+            }
+        }
+
+        /**
+         * Tells whether the window starts with a pattern, or with the start of one.
+         * @param p the pattern
+         * @return true if every command in the window fits the pattern up to its length
+         */
+        private boolean matches(Pattern p) {
+            for (int i = 0; i < Math.min(size, p.length); i++) {
+                if (!fits(p, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean fits(Pattern p, int i) {
+            Lex.Command cmd = window[i];
+            switch (p) {
+                case ARRAY_READ:
+                    switch (i) {
+                        case 0:
+                        case 1:
+                            return cmd.op == Lex.Op.PUSH;
+                        case 2:
+                            return cmd.op == Lex.Op.ADD;
+                        case 3:
+                            return is(cmd, Lex.Op.POP, Lex.Segment.POINTER, 1);
+                        default:
+                            return is(cmd, Lex.Op.PUSH, Lex.Segment.THAT, 0);
+                    }
+                case INCREMENT:
+                    switch (i) {
+                        case 0:
+                            return cmd.op == Lex.Op.PUSH && cmd.segment != Lex.Segment.CONSTANT;
+                        case 1:
+                            return cmd.op == Lex.Op.PUSH && cmd.segment == Lex.Segment.CONSTANT && cmd.index <= Short.MAX_VALUE;
+                        case 2:
+                            return cmd.op == Lex.Op.ADD || cmd.op == Lex.Op.SUB;
+                        default:
+                            return is(cmd, Lex.Op.POP, window[0].segment, window[0].index);
                     }
+                case ARRAY_WRITE:
+                    switch (i) {
+                        case 0:
+                            return cmd.op == Lex.Op.POP && cmd.segment == Lex.Segment.TEMP;
+                        case 1:
+                            return is(cmd, Lex.Op.POP, Lex.Segment.POINTER, 1);
+                        case 2:
+                            return is(cmd, Lex.Op.PUSH, Lex.Segment.TEMP, window[0].index);
+                        default:
+                            return is(cmd, Lex.Op.POP, Lex.Segment.THAT, 0);
+                    }
+                default:
+                    return i == 0 ? cmd.op == Lex.Op.PUSH : cmd.op == Lex.Op.POP && cmd.segment != Lex.Segment.CONSTANT;
+            }
+        }
+
+        private static boolean is(Lex.Command cmd, Lex.Op op, Lex.Segment segment, int index) {
+            return cmd.op == op && cmd.segment == segment && cmd.index == index;
+        }
+
+        private void fuse(Pattern p) {
+            Lex.Command first = window[0];
+            Lex.Command second = window[1];
+            writer.setLine(first.line);
+            switch (p) {
+                case ARRAY_READ:
+                    writer.writeArrayRead(first.segment, first.index, second.segment, second.index);
+                    break;
+                case INCREMENT:
+                    writer.writeIncrement(first.segment, first.index,
+                            window[2].op == Lex.Op.ADD ? second.index : -second.index);
                     break;
-                case "static":
-                    outPrinter.print(pushTemplate1(String.valueOf(16 + index), index, true));
+                case ARRAY_WRITE:
+                    writer.writeArrayWrite(first.index);
                     break;
                 default:
-                    throw new IllegalArgumentException("Invalid segment for PUSH command");
+                    writer.writeMove(first.segment, first.index, second.segment, second.index);
+            }
+            hits[p.ordinal()]++;
+        }
+
+        /**
+         * Drops commands from the start of the window, keeping the Command instances for reuse.
+         * @param n the number of commands
+         */
+        private void shift(int n) {
+            for (int k = 0; k < n; k++) {
+                Lex.Command first = window[0];
+                System.arraycopy(window, 1, window, 0, WINDOW - 1);
+                System.arraycopy(owners, 1, owners, 0, WINDOW - 1);
+                window[WINDOW - 1] = first;
+            }
+            size -= n;
+        }
+    }
+
+    /**
+     * The call graph of a whole program, read from the commands of every file.
+     * It decides which functions are dead and are left out of the translation,
+     * and which calls are replaced by the body of the function.
+     * Calls outside of any function always run, so their callees are roots as well.
+     * <p>
+     * A function is inlined when it is a leaf of at most INLINE_SIZE commands that keeps
+     * to the stack discipline of compiled Jack: nothing on the stack at a label or a jump,
+     * and only the return value at a return. Its arguments and locals move to temp entries
+     * the caller does not use, so inlining relies on temp values never living across a call,
+     * which compiled Jack guarantees.
+     */
+    public static class CallGraph {
+        // Largest body inlined, in commands
+        public static final int INLINE_SIZE = 12;
+        // Most commands the copies of one function may add to the program
+        public static final int INLINE_GROWTH = 600;
+
+        /**
+         * What the scan learned about one function.
+         */
+        static class Function {
+            final String name;
+            final File file;
+            final int locals;
+            final ArrayList<Lex.Command> calls = new ArrayList<>();
+            // The commands after the function command, null when it cannot be inlined
+            ArrayList<Lex.Command> body = new ArrayList<>();
+            int arguments;
+            int depth;
+            // Mask of the temp entries used
+            int temps;
+            boolean statics;
+            boolean setsThis;
+            boolean setsThat;
+
+            Function(String name, File file, int locals) {
+                this.name = name;
+                this.file = file;
+                this.locals = locals;
+            }
+        }
+
+        private final HashMap<String, Function> functions = new HashMap<>();
+        private final HashMap<File, ArrayList<String>> byFile = new HashMap<>();
+        private final ArrayList<Lex.Command> topCalls = new ArrayList<>();
+        private final HashSet<String> inlined = new HashSet<>();
+        // Null while every function is live
+        private HashSet<String> live;
+        private final boolean intrinsics;
+
+        /**
+         * Reads the functions and calls of every file.
+         * @param vmFiles the .vm files of the program
+         * @param intrinsics whether Math.multiply is written in place, so it is not called
+         */
+        public CallGraph(List<File> vmFiles, boolean intrinsics) {
+            this.intrinsics = intrinsics;
+            for (File f : vmFiles) {
+                ArrayList<String> defined = new ArrayList<>();
+                byFile.put(f, defined);
+                Function current = null;
+                Lex parser = new Lex(f);
+                while (parser.hasMoreCommands()) {
+                    parser.advance();
+                    Lex.Command cmd = parser.command();
+                    if (cmd.op == Lex.Op.FUNCTION) {
+                        end(current);
+                        current = new Function(cmd.name, f, cmd.index);
+                        functions.put(cmd.name, current);
+                        defined.add(cmd.name);
+                    } else if (current == null) {
+                        if (cmd.op == Lex.Op.CALL) {
+                            topCalls.add(new Lex.Command().set(cmd));
+                        }
+                    } else {
+                        scan(current, cmd);
+                    }
+                }
+                end(current);
+            }
+        }
+
+        /**
+         * Records one command of a function, and checks whether the function can still be inlined.
+         * @param f the function
+         * @param cmd the command
+         */
+        private void scan(Function f, Lex.Command cmd) {
+            if (cmd.op == Lex.Op.CALL) {
+                if (!intrinsics || cmd.index != 2 || !cmd.name.equals(Writer.MULTIPLY)) {
+                    f.calls.add(new Lex.Command().set(cmd));
+                }
+                f.body = null;
+            }
+            if (cmd.segment == Lex.Segment.TEMP) {
+                f.temps |= 1 << (cmd.index & 7);
+                f.body = null;
+            }
+            if (f.body == null) {
+                return;
             }
-        } else if (command == Lex.POP) {
-            switch (segment) {
-                case "local":
-                    outPrinter.print(popTemplate1("LCL", index, false));
-                    break;
-                case "argument":
-                    outPrinter.print(popTemplate1("ARG", index, false));
+            if (f.body.size() == INLINE_SIZE) {
+                f.body = null;
+                return;
+            }
+            f.body.add(new Lex.Command().set(cmd));
+
+            boolean ok = true;
+            switch (cmd.op.type) {
+                case Lex.PUSH:
+                    f.depth++;
                     break;
-                case "this":
-                    outPrinter.print(popTemplate1("THIS", index, false));
+                case Lex.POP:
+                    f.depth--;
+                    ok = cmd.segment != Lex.Segment.CONSTANT;
                     break;
-                case "that":
-                    outPrinter.print(popTemplate1("THAT", index, false));
+                case Lex.ARITHMETIC:
+                    if (cmd.op != Lex.Op.NEG && cmd.op != Lex.Op.NOT) {
+                        f.depth--;
+                    }
                     break;
-                case "temp":
-                    outPrinter.print(popTemplate1("R5", index + 5, false));
+                case Lex.IF:
+                    f.depth--;
+                    ok = f.depth == 0;
                     break;
-                case "pointer":
-                    if (index == 0) {
-                        outPrinter.print(popTemplate1("THIS", index, true));
-                    } else if (index == 1) {
-                        outPrinter.print(popTemplate1("THAT", index, true));
-                    }
+                case Lex.LABEL:
+                case Lex.GOTO:
+                    ok = f.depth == 0;
                     break;
-                case "static":
-                    outPrinter.print(popTemplate1(String.valueOf(16 + index), index, true));
+                case Lex.RETURN:
+                    ok = f.depth == 1;
+                    f.depth = 0;
                     break;
                 default:
-                    throw new IllegalArgumentException("Invalid segment for POP command");
+                    break;
             }
-        } else {
-            throw new IllegalArgumentException("Call writePushPop() for a non-pushpop command");
+            if (cmd.segment == Lex.Segment.ARGUMENT) {
+                f.arguments = Math.max(f.arguments, cmd.index + 1);
+            } else if (cmd.segment == Lex.Segment.LOCAL) {
+                ok &= cmd.index < f.locals;
+            } else if (cmd.segment == Lex.Segment.STATIC) {
+                f.statics = true;
+            } else if (cmd.op == Lex.Op.POP && cmd.segment == Lex.Segment.POINTER) {
+                f.setsThis |= cmd.index == 0;
+                f.setsThat |= cmd.index == 1;
+            }
+            if (!ok || f.depth < 0) {
+                f.body = null;
+            }
+        }
+
+        /**
+         * Finishes the scan of a function: a body that can be inlined ends with a return.
+         * @param f the function, or null
+         */
+        private void end(Function f) {
+            if (f != null && f.body != null && (f.body.isEmpty() || f.body.get(f.body.size() - 1).op != Lex.Op.RETURN)) {
+                f.body = null;
+            }
+        }
+
+        /**
+         * Picks the functions to inline: small enough, and not called so often that the copies
+         * grow the program by more than INLINE_GROWTH commands. Call before removeDead(), so a
+         * function inlined at every call site is dead.
+         */
+        public void inlineSmall() {
+            HashMap<String, Integer> sites = new HashMap<>();
+            for (Function f : functions.values()) {
+                for (Lex.Command call : f.calls) {
+                    sites.merge(call.name, 1, Integer::sum);
+                }
+            }
+            for (Function f : functions.values()) {
+                if (f.body != null && sites.getOrDefault(f.name, 0) * f.body.size() <= INLINE_GROWTH) {
+                    inlined.add(f.name);
+                }
+            }
+        }
+
+        /**
+         * Marks the functions the roots reach; every other function is dead.
+         * A call that is inlined does not reach its function.
+         * @param roots the functions the program starts from
+         */
+        public void removeDead(List<String> roots) {
+            live = new HashSet<>();
+            ArrayList<String> work = new ArrayList<>(roots);
+            for (Lex.Command call : topCalls) {
+                work.add(call.name);
+            }
+            while (!work.isEmpty()) {
+                Function f = functions.get(work.remove(work.size() - 1));
+                if (f != null && live.add(f.name)) {
+                    for (Lex.Command call : f.calls) {
+                        if (!inlines(f, call)) {
+                            work.add(call.name);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Tells whether a function is reached from the roots.
+         * @param function the function
+         * @return false if the function is dead
+         */
+        public boolean isLive(String function) {
+            return live == null || live.contains(function);
+        }
+
+        /**
+         * Returns the dead functions of one file.
+         * @param vmFile the .vm file
+         * @return the names, in file order
+         */
+        public ArrayList<String> dead(File vmFile) {
+            ArrayList<String> dead = new ArrayList<>();
+            ArrayList<String> defined = byFile.get(vmFile);
+            if (defined != null) {
+                for (String function : defined) {
+                    if (!isLive(function)) {
+                        dead.add(function);
+                    }
+                }
+            }
+            return dead;
+        }
+
+        /**
+         * Describes what the translation of a file depends on besides its own content:
+         * its dead functions and the bodies inlined into it.
+         * @param vmFile the .vm file
+         * @return the description, part of the cache key of the file
+         */
+        public String variant(File vmFile) {
+            StringBuilder variant = new StringBuilder(String.join(",", dead(vmFile)));
+            HashSet<String> seen = new HashSet<>();
+            for (String name : byFile.getOrDefault(vmFile, new ArrayList<>())) {
+                Function caller = functions.get(name);
+                for (Lex.Command call : caller.calls) {
+                    if (inlines(caller, call) && seen.add(call.name)) {
+                        variant.append(';').append(call.name);
+                        for (Lex.Command cmd : functions.get(call.name).body) {
+                            variant.append(',').append(cmd);
+                        }
+                    }
+                }
+            }
+            return variant.toString();
+        }
+
+        /**
+         * Tells whether a call is replaced by the body of the function: the function is inlined,
+         * the call passes every argument it reads, the caller has enough free temp entries,
+         * and statics are only shared within a file.
+         * @param caller the calling function
+         * @param call the call command
+         * @return true if the call is inlined
+         */
+        private boolean inlines(Function caller, Lex.Command call) {
+            if (caller == null || !inlined.contains(call.name)) {
+                return false;
+            }
+            Function f = functions.get(call.name);
+            int temps = call.index + f.locals + (f.setsThis ? 1 : 0) + (f.setsThat ? 1 : 0);
+            return call.index >= f.arguments && Integer.bitCount(~caller.temps & 0xFF) >= temps
+                    && (!f.statics || f.file.equals(caller.file));
+        }
+
+        /**
+         * Writes the commands that replace an inlined call. The arguments are popped into free
+         * temp entries, the locals are cleared in others, THIS and THAT are saved when the body
+         * changes them, and the labels of the body are renamed after the call site.
+         * A return jumps to the end of the copy, with the return value on the stack.
+         * @param caller the calling function
+         * @param call the call command
+         * @param site a number that differs for every call site of the file
+         * @param into where to put the commands
+         * @return false if the call is not inlined, and nothing was written
+         */
+        public boolean expand(String caller, Lex.Command call, int site, ArrayList<Lex.Command> into) {
+            Function from = caller == null ? null : functions.get(caller);
+            if (!inlines(from, call)) {
+                return false;
+            }
+            Function f = functions.get(call.name);
+            into.clear();
+            int free = ~from.temps & 0xFF;
+            int[] arguments = new int[call.index];
+            for (int i = arguments.length - 1; i >= 0; i--) {
+                arguments[i] = Integer.numberOfTrailingZeros(Integer.highestOneBit(free));
+                free &= ~(1 << arguments[i]);
+                add(into, Lex.Op.POP, Lex.Segment.TEMP, arguments[i], null);
+            }
+            int[] saved = new int[2];
+            for (int p = 0; p < 2; p++) {
+                if (p == 0 ? f.setsThis : f.setsThat) {
+                    saved[p] = Integer.numberOfTrailingZeros(Integer.highestOneBit(free));
+                    free &= ~(1 << saved[p]);
+                    add(into, Lex.Op.PUSH, Lex.Segment.POINTER, p, null);
+                    add(into, Lex.Op.POP, Lex.Segment.TEMP, saved[p], null);
+                }
+            }
+            int[] locals = new int[f.locals];
+            for (int i = 0; i < locals.length; i++) {
+                locals[i] = Integer.numberOfTrailingZeros(Integer.highestOneBit(free));
+                free &= ~(1 << locals[i]);
+                add(into, Lex.Op.PUSH, Lex.Segment.CONSTANT, 0, null);
+                add(into, Lex.Op.POP, Lex.Segment.TEMP, locals[i], null);
+            }
+
+            String prefix = f.name + "$" + site;
+            boolean jumpsToEnd = false;
+            for (int i = 0; i < f.body.size(); i++) {
+                Lex.Command cmd = f.body.get(i);
+                if (cmd.op == Lex.Op.RETURN) {
+                    if (i < f.body.size() - 1) {
+                        add(into, Lex.Op.GOTO, null, 0, prefix);
+                        jumpsToEnd = true;
+                    }
+                } else if (cmd.segment == Lex.Segment.ARGUMENT) {
+                    add(into, cmd.op, Lex.Segment.TEMP, arguments[cmd.index], null);
+                } else if (cmd.segment == Lex.Segment.LOCAL) {
+                    add(into, cmd.op, Lex.Segment.TEMP, locals[cmd.index], null);
+                } else if (cmd.op.type == Lex.LABEL || cmd.op.type == Lex.GOTO || cmd.op.type == Lex.IF) {
+                    add(into, cmd.op, null, 0, prefix + "$" + cmd.name);
+                } else {
+                    into.add(new Lex.Command().set(cmd));
+                }
+            }
+            if (jumpsToEnd) {
+                add(into, Lex.Op.LABEL, null, 0, prefix);
+            }
+            for (int p = 0; p < 2; p++) {
+                if (p == 0 ? f.setsThis : f.setsThat) {
+                    add(into, Lex.Op.PUSH, Lex.Segment.TEMP, saved[p], null);
+                    add(into, Lex.Op.POP, Lex.Segment.POINTER, p, null);
+                }
+            }
+            return true;
+        }
+
+        private static void add(ArrayList<Lex.Command> into, Lex.Op op, Lex.Segment segment, int index, String name) {
+            Lex.Command cmd = new Lex.Command();
+            cmd.op = op;
+            cmd.segment = segment;
+            cmd.index = index;
+            cmd.name = name;
+            into.add(cmd);
         }
     }
 
     /**
-     * Close the output file.
+     * Execution counters for profiling on the emulator. Every function, and with labels
+     * every VM label, gets a 32-bit counter, low word first, in a RAM region that ends
+     * where the heap starts. The stack grows toward it, so it must stay below the region.
+     * Counters are numbered over all the files before any is translated, in file order,
+     * so every file can still be translated on its own. Dead functions get no counter,
+     * and neither do inlined bodies, so profile without -inline.
      */
-    public void close() {
-        outPrinter.close();
+    public static class Profile {
+        static final int END = 2048;
+        // At most half of the stack is given to the counters
+        static final int MAX_WORDS = 896;
+        private final HashMap<String, Integer> addresses = new HashMap<>();
+        private final ArrayList<String> names = new ArrayList<>();
+        private final HashSet<String> functions = new HashSet<>();
+        private final HashMap<File, Integer> firsts = new HashMap<>();
+        private final int base;
+
+        /**
+         * Numbers the counters of every file.
+         * @param vmFiles the .vm files of the program
+         * @param labels whether the labels get counters too
+         * @param graph the call graph that tells the dead functions, or null
+         */
+        public Profile(List<File> vmFiles, boolean labels, CallGraph graph) {
+            for (File f : vmFiles) {
+                firsts.put(f, names.size());
+                String function = null;
+                boolean dead = false;
+                Lex parser = new Lex(f);
+                while (parser.hasMoreCommands()) {
+                    parser.advance();
+                    Lex.Command cmd = parser.command();
+                    String name = null;
+                    if (cmd.op == Lex.Op.FUNCTION) {
+                        function = cmd.name;
+                        dead = graph != null && !graph.isLive(function);
+                        if (!dead) {
+                            functions.add(function);
+                            name = function;
+                        }
+                    } else if (labels && cmd.op == Lex.Op.LABEL && !dead) {
+                        name = function == null ? cmd.name : function + "$" + cmd.name;
+                    }
+                    // A name that comes again is the same symbol, and shares the counter
+                    if (name != null && !addresses.containsKey(name)) {
+                        addresses.put(name, 2 * names.size());
+                        names.add(name);
+                    }
+                }
+            }
+            if (2 * names.size() > MAX_WORDS) {
+                throw new IllegalArgumentException("Too many counters: " + names.size()
+                        + ", at most " + MAX_WORDS / 2 + " fit");
+            }
+            base = END - 2 * names.size();
+            for (String name : names) {
+                addresses.put(name, base + addresses.get(name));
+            }
+        }
+
+        /**
+         * Returns the address of the counter of a function or a scoped label.
+         * @param name the function or the label
+         * @return the address of the low word, or -1 if it has no counter
+         */
+        public int address(String name) {
+            Integer address = addresses.get(name);
+            return address == null ? -1 : address;
+        }
+
+        /**
+         * Returns the lowest address of the region.
+         * @return the address of the first counter
+         */
+        public int base() {
+            return base;
+        }
+
+        /**
+         * Returns the number of counters.
+         * @return the number of counters
+         */
+        public int size() {
+            return names.size();
+        }
+
+        /**
+         * Describes where the counters of a file go, for the cache key.
+         * @param vmFile the .vm file
+         * @return the address of the first counter of the file
+         */
+        public String variant(File vmFile) {
+            return Integer.toString(base + 2 * firsts.get(vmFile));
+        }
+
+        /**
+         * Writes the map from counter addresses to names, one counter per line:
+         * the address of the low word, "function" or "label", and the name.
+         * @param file the map file
+         * @throws IOException if the map cannot be written
+         */
+        public void writeMap(File file) throws IOException {
+            StringBuilder map = new StringBuilder();
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                map.append(base + 2 * i).append(' ')
+                        .append(functions.contains(name) ? "function" : "label").append(' ')
+                        .append(name).append('\n');
+            }
+            Files.write(file.toPath(), map.toString().getBytes(StandardCharsets.US_ASCII));
+        }
     }
 
     /**
-     * Template for add, sub, and, or.
-     * @return the assembly template
+     * Translation statistics of one .vm file: how many commands of each kind it has,
+     * how many Hack instructions and labels they turned into, how many bytes were
+     * written and how the time was split between lexing and emitting.
+     * With the peephole optimizer, also how many instructions were left and which rules removed the others,
+     * and with fusion, how many times every pattern was fused. With dead function elimination,
+     * which functions were left out, and with inlining, which call sites were inlined.
+     * A kind is the opcode, or the opcode and the segment for push and pop.
      */
-    private String arithmeticTemplate1() {
-        return "@SP\n" +
-               "AM=M-1\n" +
-               "D=M\n" +
-               "A=A-1\n";
+    public static class Stats {
+        private static final int OPS = Lex.Op.values().length;
+        private static final int SEGMENTS = Lex.Segment.values().length;
+        private static final int KINDS = OPS + 2 * SEGMENTS;
+
+        public final String file;
+        public final long[] commands = new long[KINDS];
+        public final long[] instructions = new long[KINDS];
+        public long optimizedInstructions;
+        // Hits of every Peephole.Rule, null when the optimizer is off
+        public long[] rules;
+        // Hits of every Fusion.Pattern, null when fusion is off
+        public long[] patterns;
+        // Functions left out by dead function elimination, null when it is off
+        public ArrayList<String> removed;
+        // Call sites replaced by the body of the function, null when inlining is off
+        public ArrayList<String> inlined;
+        public long labels;
+        public long bytes;
+        public long lexNanos;
+        public long emitNanos;
+        public boolean cached;
+
+        public Stats(String file) {
+            this.file = file;
+        }
+
+        /**
+         * Records one translated command. Its instructions are charged by the Writer,
+         * once they are written.
+         * @param cmd the command
+         */
+        public void record(Lex.Command cmd) {
+            commands[kind(cmd)]++;
+        }
+
+        /**
+         * Adds the statistics of another file to these.
+         * @param other the statistics to add
+         */
+        public void add(Stats other) {
+            for (int i = 0; i < KINDS; i++) {
+                commands[i] += other.commands[i];
+                instructions[i] += other.instructions[i];
+            }
+            if (other.rules != null) {
+                if (rules == null) {
+                    rules = new long[other.rules.length];
+                }
+                for (int i = 0; i < rules.length; i++) {
+                    rules[i] += other.rules[i];
+                }
+                optimizedInstructions += other.optimizedInstructions;
+            }
+            if (other.removed != null) {
+                if (removed == null) {
+                    removed = new ArrayList<>();
+                }
+                removed.addAll(other.removed);
+            }
+            if (other.inlined != null) {
+                if (inlined == null) {
+                    inlined = new ArrayList<>();
+                }
+                inlined.addAll(other.inlined);
+            }
+            if (other.patterns != null) {
+                if (patterns == null) {
+                    patterns = new long[other.patterns.length];
+                }
+                for (int i = 0; i < patterns.length; i++) {
+                    patterns[i] += other.patterns[i];
+                }
+            }
+            labels += other.labels;
+            bytes += other.bytes;
+            lexNanos += other.lexNanos;
+            emitNanos += other.emitNanos;
+        }
+
+        static int kind(Lex.Command cmd) {
+            if (cmd.op == Lex.Op.PUSH) {
+                return OPS + cmd.segment.ordinal();
+            } else if (cmd.op == Lex.Op.POP) {
+                return OPS + SEGMENTS + cmd.segment.ordinal();
+            }
+            return cmd.op.ordinal();
+        }
+
+        private static String kindName(int kind) {
+            if (kind < OPS) {
+                return Lex.Op.values()[kind].mnemonic;
+            } else if (kind < OPS + SEGMENTS) {
+                return "push " + Lex.Segment.values()[kind - OPS].name;
+            }
+            return "pop " + Lex.Segment.values()[kind - OPS - SEGMENTS].name;
+        }
+
+        /**
+         * Writes the statistics as a JSON object.
+         * @param json where to write
+         * @param indent the indentation of the object
+         */
+        void toJson(StringBuilder json, String indent) {
+            long totalCommands = 0;
+            long totalInstructions = 0;
+            for (int i = 0; i < KINDS; i++) {
+                totalCommands += commands[i];
+                totalInstructions += instructions[i];
+            }
+
+            json.append("{\n");
+            json.append(indent).append("  \"file\": \"").append(file.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+            json.append(indent).append("  \"cached\": ").append(cached).append(",\n");
+            json.append(indent).append("  \"commands\": ").append(totalCommands).append(",\n");
+            json.append(indent).append("  \"instructions\": ").append(totalInstructions).append(",\n");
+            if (rules != null) {
+                json.append(indent).append("  \"optimizedInstructions\": ").append(optimizedInstructions).append(",\n");
+                json.append(indent).append("  \"peephole\": {");
+                Peephole.Rule[] names = Peephole.Rule.values();
+                for (int i = 0; i < rules.length; i++) {
+                    json.append(i == 0 ? "" : ", ").append("\"").append(names[i].name()).append("\": ").append(rules[i]);
+                }
+                json.append("},\n");
+            }
+            if (patterns != null) {
+                json.append(indent).append("  \"fusion\": {");
+                Fusion.Pattern[] names = Fusion.Pattern.values();
+                for (int i = 0; i < patterns.length; i++) {
+                    json.append(i == 0 ? "" : ", ").append("\"").append(names[i].name()).append("\": ").append(patterns[i]);
+                }
+                json.append("},\n");
+            }
+            if (removed != null) {
+                json.append(indent).append("  \"removedFunctions\": [");
+                for (int i = 0; i < removed.size(); i++) {
+                    json.append(i == 0 ? "" : ", ").append("\"").append(removed.get(i)).append("\"");
+                }
+                json.append("],\n");
+            }
+            if (inlined != null) {
+                json.append(indent).append("  \"inlinedSites\": [");
+                for (int i = 0; i < inlined.size(); i++) {
+                    json.append(i == 0 ? "" : ", ").append("\"").append(inlined.get(i)).append("\"");
+                }
+                json.append("],\n");
+            }
+            json.append(indent).append("  \"labels\": ").append(labels).append(",\n");
+            json.append(indent).append("  \"bytes\": ").append(bytes).append(",\n");
+            json.append(indent).append("  \"lexMillis\": ").append(String.format(Locale.ROOT, "%.3f", lexNanos / 1e6)).append(",\n");
+            json.append(indent).append("  \"emitMillis\": ").append(String.format(Locale.ROOT, "%.3f", emitNanos / 1e6)).append(",\n");
+            json.append(indent).append("  \"kinds\": {");
+            String sep = "\n";
+            for (int i = 0; i < KINDS; i++) {
+                if (commands[i] > 0) {
+                    json.append(sep).append(indent).append("    \"").append(kindName(i)).append("\": {\"commands\": ")
+                            .append(commands[i]).append(", \"instructions\": ").append(instructions[i]).append("}");
+                    sep = ",\n";
+                }
+            }
+            json.append(sep.equals("\n") ? "}\n" : "\n" + indent + "  }\n");
+            json.append(indent).append("}");
+        }
+
+        /**
+         * Writes the report of a whole translation: the statistics of every file and their total.
+         * With the peephole optimizer, the optimized instructions of the files and the shared ones
+         * must add up to the size of the program, unless some files came from the cache.
+         * @param files the statistics of every file, in output order
+         * @param shared the number of instructions in the bootstrap code and the shared routines
+         * @param level the code generation profile
+         * @param romWords the size of the whole program in ROM words, after optimization
+         * @param report the report file
+         */
+        public static void writeReport(ArrayList<Stats> files, long shared, String level, long romWords, File report) {
+            Stats total = new Stats("total");
+            StringBuilder json = new StringBuilder();
+            json.append("{\n  \"version\": \"").append(VERSION).append("\",\n  \"files\": [");
+            String sep = "\n    ";
+            for (Stats f : files) {
+                json.append(sep);
+                f.toJson(json, "    ");
+                total.add(f);
+                sep = ",\n    ";
+            }
+            // Cached files have no counts, the check needs every file translated
+            boolean cached = false;
+            for (Stats f : files) {
+                cached |= f.cached;
+            }
+            if (total.rules != null && !cached && total.optimizedInstructions + shared != romWords) {
+                throw new IllegalStateException(total.optimizedInstructions + " optimized and " + shared
+                        + " shared instructions, but the program takes " + romWords + " words");
+            }
+            json.append("\n  ],\n  \"sharedInstructions\": ").append(shared);
+            json.append(",\n  \"profile\": \"").append(level).append('"');
+            json.append(",\n  \"romWords\": ").append(romWords);
+            json.append(",\n  \"total\": ");
+            total.toJson(json, "  ");
+            json.append("\n}\n");
+
+            try {
+                Files.write(report.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.out.println("Cannot write report: " + e.getMessage());
+            }
+        }
     }
 
     /**
-     * Template for gt, lt, eq.
-     * @param type JLE, JGT, JEQ
-     * @return the assembly template
+     * The translation of one .vm file, with the shared routines its code jumps to,
+     * and its source map with -sourcemap.
      */
-    private String arithmeticTemplate2(String type) {
-        return "@SP\n" +
-               "AM=M-1\n" +
-               "D=M\n" +
-               "A=A-1\n" +
-               "D=M-D\n" +
-               "@FALSE" + arthJumpFlag + "\n" +
-               "D;" + type + "\n" +
-               "@SP\n" +
-               "A=M-1\n" +
-               "M=-1\n" +
-               "@CONTINUE" + arthJumpFlag + "\n" +
-               "0;JMP\n" +
-               "(FALSE" + arthJumpFlag + ")\n" +
-               "@SP\n" +
-               "A=M-1\n" +
-               "M=0\n" +
-               "(CONTINUE" + arthJumpFlag + ")\n";
+    public static class Fragment {
+        public final byte[] code;
+        public final int routines;
+        public final byte[] sources;
+
+        /**
+         * @param code the assembly code
+         * @param routines the mask of the Writer.Routine values the code uses
+         */
+        public Fragment(byte[] code, int routines) {
+            this(code, routines, null);
+        }
+
+        /**
+         * @param code the assembly code
+         * @param routines the mask of the Writer.Routine values the code uses
+         * @param sources the source map of the code, from address 0, or null
+         */
+        public Fragment(byte[] code, int routines, byte[] sources) {
+            this.code = code;
+            this.routines = routines;
+            this.sources = sources;
+        }
     }
 
     /**
-     * Template for push local, this, that, argument, temp, pointer, static.
-     * @param segment the memory segment
-     * @param index the index in the segment
-     * @param isDirect whether this command is direct addressing
-     * @return the assembly template
+     * Translates one .vm file on a fork-join pool into its own in-memory buffer.
      */
-    private String pushTemplate1(String segment, int index, boolean isDirect) {
-        // When it is a pointer, just read the data stored in THIS or THAT
-        // When it is static, just read the data stored in that address
-        String noPointerCode = (isDirect) ? "" : "@" + index + "\nA=D+A\nD=M\n";
+    static class FileTask extends RecursiveTask<Fragment> {
+        private static final long serialVersionUID = 1L;
+        private final File file;
+        private final Options options;
+        private final Cache cache;
+        private final Stats stats;
+        private final CallGraph graph;
+        private final Profile profile;
 
-        return "@" + segment + "\n" +
-               "D=M\n" +
-               noPointerCode +
-               "@SP\n" +
-               "A=M\n" +
-               "M=D\n" +
-               "@SP\n" +
-               "M=M+1\n";
+        /**
+         * @param file the .vm file
+         * @param options the code generation options
+         * @param cache the translation cache, or null to always translate
+         * @param stats where to record the statistics of this file, or null
+         * @param graph the call graph that tells the dead and inlined functions, or null
+         * @param profile the execution counters, or null
+         */
+        FileTask(File file, Options options, Cache cache, Stats stats, CallGraph graph, Profile profile) {
+            this.file = file;
+            this.options = options;
+            this.cache = cache;
+            this.stats = stats;
+            this.graph = graph;
+            this.profile = profile;
+        }
+
+        @Override
+        protected Fragment compute() {
+            String key = null;
+            if (cache != null) {
+                key = cache.key(file, (graph == null ? "" : graph.variant(file))
+                        + (profile == null ? "" : ";" + profile.variant(file)));
+                Fragment cached = cache.load(key);
+                if (cached != null) {
+                    if (stats != null) {
+                        stats.cached = true;
+                        stats.bytes = cached.code.length;
+                    }
+                    return cached;
+                }
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Writer writer = new Writer(Channels.newChannel(bytes), options);
+            writer.setProfile(profile);
+            translate(file, writer, stats, graph);
+            writer.close();
+            Fragment fragment = new Fragment(bytes.toByteArray(), writer.routines(),
+                    writer.sourceMap() == null ? null : writer.sourceMap().toBytes());
+
+            if (cache != null) {
+                cache.store(key, fragment);
+            }
+            return fragment;
+        }
     }
 
     /**
-     * Template for pop local, this, that, argument, temp, pointer, static.
-     * @param segment the memory segment
-     * @param index the index in the segment
-     * @param isDirect whether this command is direct addressing
-     * @return the assembly template
+     * Translates every command of one .vm file.
+     * @param file the .vm file
+     * @param writer the writer that receives the assembly code
      */
-    private String popTemplate1(String segment, int index, boolean isDirect) {
-        // When it is a pointer, R13 will store the address of THIS or THAT
-        // When it is static, R13 will store the index address
-        String noPointerCode = (isDirect) ? "D=A\n" : "D=M\n@" + index + "\nD=D+A\n";
+    public static void translate(File file, Writer writer) {
+        translate(file, writer, null);
+    }
 
-        return "@" + segment + "\n" +
-               noPointerCode +
-               "@R13\n" +
-               "M=D\n" +
-               "@SP\n" +
-               "AM=M-1\n" +
-               "D=M\n" +
-               "@R13\n" +
-               "A=M\n" +
-               "M=D\n";
+    /**
+     * Translates every command of one .vm file.
+     * @param file the .vm file
+     * @param writer the writer that receives the assembly code
+     * @param stats where to record the statistics of this file, or null
+     */
+    public static void translate(File file, Writer writer, Stats stats) {
+        translate(file, writer, stats, null);
     }
-}
+
+    /**
+     * Translates every command of one .vm file, leaving out the dead functions and inlining calls.
+     * @param file the .vm file
+     * @param writer the writer that receives the assembly code
+     * @param stats where to record the statistics of this file, or null
+     * @param graph the call graph that tells the dead and inlined functions, or null
+     */
+    public static void translate(File file, Writer writer, Stats stats, CallGraph graph) {
+        Lex parser = new Lex(file);
+        writer.setFileName(file);
+        Feed feed = new Feed(writer, graph);
+
+        if (stats != null) {
+            translate(parser, writer, feed, stats);
+            return;
+        }
+
+        // Start parsing
+        while (parser.hasMoreCommands()) {
+            parser.advance();
+            feed.add(parser.command());
+        }
+        writer.endFile();
+    }
+
+    /**
+     * Translates every command while recording the statistics of each one.
+     * @param parser the parser of the file
+     * @param writer the writer that receives the assembly code
+     * @param feed where the commands go
+     * @param stats where to record the statistics
+     */
+    private static void translate(Lex parser, Writer writer, Feed feed, Stats stats) {
+        writer.enableCounting();
+        writer.setStats(stats);
+        long instructions = writer.instructions();
+        long labels = writer.labels();
+        long bytes = writer.bytesWritten();
+        Peephole peephole = writer.peephole();
+        long optimized = writer.optimizedInstructions();
+        long[] rules = peephole == null ? null : peephole.hits();
+        Fusion fusion = writer.fusion();
+        long[] patterns = fusion == null ? null : fusion.hits();
+        feed.inlined = stats.inlined;
+        long lexStart = System.nanoTime();
+
+        while (parser.hasMoreCommands()) {
+            parser.advance();
+            Lex.Command cmd = parser.command();
+            long emitStart = System.nanoTime();
+            stats.lexNanos += emitStart - lexStart;
+
+            if (feed.add(cmd)) {
+                stats.record(cmd);
+            }
+
+            lexStart = System.nanoTime();
+            stats.emitNanos += lexStart - emitStart;
+        }
+        stats.lexNanos += System.nanoTime() - lexStart;
+        writer.endFile();
+        writer.setStats(null);
+        stats.labels = writer.labels() - labels;
+        stats.bytes = writer.bytesWritten() - bytes;
+        long charged = 0;
+        for (long n : stats.instructions) {
+            charged += n;
+        }
+        if (charged != writer.instructions() - instructions) {
+            throw new IllegalStateException(stats.file + ": " + charged + " instructions charged to commands, "
+                    + (writer.instructions() - instructions) + " written");
+        }
+        if (peephole != null) {
+            stats.optimizedInstructions = writer.optimizedInstructions() - optimized;
+            stats.rules = peephole.hits();
+            for (int i = 0; i < rules.length; i++) {
+                stats.rules[i] -= rules[i];
+            }
+        }
+        if (fusion != null) {
+            stats.patterns = fusion.hits();
+            for (int i = 0; i < patterns.length; i++) {
+                stats.patterns[i] -= patterns[i];
+            }
+        }
+    }
+
+    /**
+     * Passes the commands of one file on to a Writer: leaves out the dead functions,
+     * replaces the inlined calls with the body of the function, and goes through
+     * the fusion when it is enabled.
+     */
+    static class Feed {
+        private final Writer writer;
+        private final Fusion fusion;
+        private final CallGraph graph;
+        private final ArrayList<Lex.Command> expansion = new ArrayList<>();
+        // Where to record the inlined call sites, or null
+        ArrayList<String> inlined;
+        private String function;
+        private boolean dead;
+        private int sites;
+
+        /**
+         * @param writer the writer that receives the commands
+         * @param graph the call graph that tells the dead and inlined functions, or null
+         */
+        Feed(Writer writer, CallGraph graph) {
+            this.writer = writer;
+            this.fusion = writer.fusion();
+            this.graph = graph;
+        }
+
+        /**
+         * Passes one command on.
+         * @param cmd the command
+         * @return false if the command belongs to a dead function and was left out
+         */
+        boolean add(Lex.Command cmd) {
+            if (cmd.op == Lex.Op.FUNCTION) {
+                function = cmd.name;
+                dead = graph != null && !graph.isLive(cmd.name);
+            }
+            if (dead) {
+                return false;
+            }
+            int owner = Stats.kind(cmd);
+            if (cmd.op == Lex.Op.CALL && graph != null && graph.expand(function, cmd, sites, expansion)) {
+                sites++;
+                if (inlined != null) {
+                    inlined.add(function + " -> " + cmd.name);
+                }
+                for (Lex.Command c : expansion) {
+                    // The inlined code belongs to the call in the source map and in the statistics
+                    c.line = cmd.line;
+                    pass(c, owner);
+                }
+                return true;
+            }
+            pass(cmd, owner);
+            return true;
+        }
+
+        private void pass(Lex.Command cmd, int owner) {
+            if (fusion != null) {
+                fusion.add(cmd, owner);
+            } else {
+                writer.charge(owner);
+                write(cmd, writer);
+            }
+        }
+    }
+
+    /**
+     * Hands one command to the matching Writer method, with no fusion.
+     * @param cmd the command
+     * @param writer the writer
+     */
+    private static void write(Lex.Command cmd, Writer writer) {
+        int type = cmd.op.type;
+        writer.setLine(cmd.line);
+
+        if (type == Lex.ARITHMETIC) {
+            writer.writeArithmetic(cmd.op);
+        } else if (type == Lex.POP || type == Lex.PUSH) {
+            writer.writePushPop(type, cmd.segment, cmd.index);
+        } else if (type == Lex.LABEL) {
+            writer.writeLabel(cmd.name);
+        } else if (type == Lex.GOTO) {
+            writer.writeGoto(cmd.name);
+        } else if (type == Lex.IF) {
+            writer.writeIf(cmd.name);
+        } else if (type == Lex.FUNCTION) {
+            writer.writeFunction(cmd.name, cmd.index);
+        } else if (type == Lex.CALL) {
+            writer.writeCall(cmd.name, cmd.index);
+        } else if (type == Lex.RETURN) {
+            writer.writeReturn();
+        }
+    }
+
+    /**
+     * Returns a file next to another one, with the same name but another extension.
+     * @param file the file
+     * @param extension the new extension, with the dot
+     * @return the other file
+     */
+    static File withExtension(File file, String extension) {
+        String path = file.getPath();
+        int dot = path.lastIndexOf('.');
+        return new File((dot > path.lastIndexOf(File.separatorChar) ? path.substring(0, dot) : path) + extension);
+    }
+
     /**
      * Returns all the .vm files in a directory.
      * 
@@ -463,16 +5527,19 @@ public static class Writer {
                 }
             }
         }
+        // listFiles() has no defined order, sort so the output is always the same
+        Collections.sort(result);
         return result;
     }
 
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java VMtranslator [filename|directory]");
+        Options options = Options.parse(args);
+        if (options == null) {
+            System.out.println("Usage: java VMtranslator [-cache] [-stats report.json] [-Os|-O1|-O2] [-cmp inline|shared] [-pushpop inline|shared] [-call inline|shared] [-unroll locals] [-peephole] [-tos] [-fuse] [-tailcall] [-dce [-keep function]...] [-inline] [-intrinsics] [-hack [-asm]] [-profile functions|labels] [-sourcemap] [filename|directory]");
             return;
         }
 
-        File fileIn = new File(args[0]);
+        File fileIn = new File(options.input);
         String fileOutPath = "";
         File fileOut;
         Writer writer;
@@ -496,26 +5563,133 @@ public static class Writer {
         }
 
         fileOut = new File(fileOutPath);
-        writer = new Writer(fileOut);
+        writer = new Writer(fileOut, options);
+        Cache cache = null;
+        if (options.cache) {
+            // Every output has its own entries, so pruning them never evicts those of another program
+            String name = fileOut.getName();
+            File dir = new File(new File(fileOut.getParentFile(), ".vmtcache"), name.substring(0, name.lastIndexOf('.')));
+            cache = new Cache(dir, options.codeKey());
+        }
 
+        ArrayList<Stats> stats = null;
+        if (options.stats != null) {
+            stats = new ArrayList<>();
+            for (File f : vmFiles) {
+                stats.add(new Stats(f.getName()));
+            }
+        }
+
+        if (stats != null) {
+            writer.enableCounting();
+        }
+        // A program with a Sys.vm starts at Sys.init
+        ArrayList<String> roots = new ArrayList<>(options.keep);
         for (File f : vmFiles) {
-            Lex parser = new Lex(f);
+            if (fileIn.isDirectory() && f.getName().equals("Sys.vm")) {
+                writer.writeInit();
+                roots.add("Sys.init");
+            }
+        }
+        // The optimizer writes the bootstrap out now, so it is not counted as code of the first file
+        writer.endFile();
+        long shared = writer.instructions();
+
+        // Without a known entry point, every function may be called
+        CallGraph graph = null;
+        if (options.inline || options.deadCode && !roots.isEmpty()) {
+            graph = new CallGraph(vmFiles, options.intrinsics);
+        }
+        if (options.inline) {
+            graph.inlineSmall();
+            if (stats != null) {
+                for (Stats s : stats) {
+                    s.inlined = new ArrayList<>();
+                }
+            }
+        }
+        if (options.deadCode && !roots.isEmpty()) {
+            graph.removeDead(roots);
+            ArrayList<String> removed = new ArrayList<>();
+            for (int i = 0; i < vmFiles.size(); i++) {
+                ArrayList<String> dead = graph.dead(vmFiles.get(i));
+                removed.addAll(dead);
+                if (stats != null) {
+                    stats.get(i).removed = dead;
+                }
+            }
+            System.out.println("Removed " + removed.size() + " unreachable functions"
+                    + (removed.isEmpty() ? "" : ": " + String.join(", ", removed)));
+        }
 
-            // Start parsing
-            while (parser.hasMoreCommands()) {
-                parser.advance();
-                int type = parser.commandType();
+        Profile profile = null;
+        if (options.profile) {
+            profile = new Profile(vmFiles, options.profileLabels, graph);
+            writer.setProfile(profile);
+        }
 
-                if (type == Lex.ARITHMETIC) {
-                    writer.writeArithmetic(parser.arg1());
-                } else if (type == Lex.POP || type == Lex.PUSH) {
-                    writer.writePushPop(type, parser.arg1(), parser.arg2());
+        boolean parallel = vmFiles.size() > 1 && Runtime.getRuntime().availableProcessors() > 1;
+        if (parallel || cache != null) {
+            // Translate every file on its own worker, then stitch the results together in file order
+            ArrayList<FileTask> tasks = new ArrayList<>();
+            for (int i = 0; i < vmFiles.size(); i++) {
+                FileTask task = new FileTask(vmFiles.get(i), options, cache, stats == null ? null : stats.get(i), graph, profile);
+                if (parallel) {
+                    ForkJoinPool.commonPool().execute(task);
                 }
+                tasks.add(task);
+            }
+            for (FileTask task : tasks) {
+                writer.append(parallel ? task.join() : task.invoke());
+            }
+        } else {
+            for (int i = 0; i < vmFiles.size(); i++) {
+                translate(vmFiles.get(i), writer, stats == null ? null : stats.get(i), graph);
             }
         }
 
+        // The shared routines go after the code of every file
+        long sharedStart = writer.instructions();
+        writer.writeRoutines();
+        shared += writer.instructions() - sharedStart;
+
         // Save file
         writer.close();
-        System.out.println("File created: " + fileOutPath);
+        if (cache != null) {
+            cache.prune();
+            System.out.println("Reused " + cache.hits() + " of " + vmFiles.size() + " cached translations");
+        }
+        if (stats != null) {
+            Stats.writeReport(stats, shared, options.level, writer.romWords(), new File(options.stats));
+            System.out.println("Report created: " + options.stats);
+        }
+        if (!options.hack || options.asm) {
+            System.out.println("File created: " + fileOutPath);
+            if (!writer.fitsRom()) {
+                System.out.println("Warning: the program takes " + writer.romWords() + " words, the ROM only has "
+                        + Assembler.ROM_SIZE + " and cannot run");
+            }
+        }
+        if (options.hack && writer.fitsRom()) {
+            System.out.println("File created: " + Writer.romFile(fileOut) + " (" + writer.assembler().words() + " words)");
+        }
+        if (writer.sourceMap() != null) {
+            File map = withExtension(fileOut, ".srcmap");
+            try {
+                Files.write(map.toPath(), writer.sourceMap().toBytes());
+                System.out.println("File created: " + map);
+            } catch (IOException e) {
+                System.out.println("Cannot write source map: " + e.getMessage());
+            }
+        }
+        if (profile != null) {
+            File map = withExtension(fileOut, ".counters");
+            try {
+                profile.writeMap(map);
+                System.out.println("File created: " + map + " (" + profile.size() + " counters from RAM[" + profile.base() + "])");
+            } catch (IOException e) {
+                System.out.println("Cannot write counter map: " + e.getMessage());
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,386 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Micro benchmarks for the three stages of VMT:
+ * lexing (Lex construction and preprocessing), decoding (Lex.decode on cleaned lines)
+ * and emission (Writer.writeArithmetic/writePushPop into a discarding channel).
+ *
+ * Every stage and input pair runs in its own JVM, so the JIT profile of one stage never
+ * carries into another. There it is warmed up for WARMUP_ITERATIONS and then measured for
+ * ITERATIONS, and the report gives the mean and the 99.9% confidence error of the passes over
+ * the input per second, the VM commands per second and the bytes allocated per pass, which is
+ * what a gc profiler would show as the normalized allocation rate.
+ * Synthetic inputs come from VMGen.
+ *
+ * With -memory, generated inputs from 1K to 10M lines are translated instead and
+ * the peak heap use of each translation is reported.
+ *
+ * Usage: java VMTBench [-memory] [official-files directory]
+ *        java VMTBench -fork stage name file   (runs one pair, as started by the above)
+ */
+public class VMTBench {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 10;
+    private static final long ITERATION_NANOS = 300_000_000L;
+    // Student's t for a two-sided 99.9% interval with ITERATIONS - 1 degrees of freedom
+    private static final double T_999 = 4.781;
+    private static final String[] STAGES = {"lex", "decode", "emit"};
+    private static final int[] SCALES = {10_000, 100_000, 1_000_000};
+    private static final long SEED = 42;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * One benchmark input, already read into memory for the decode and emit stages.
+     */
+    static class Input {
+        final String name;
+        final File file;
+        final ArrayList<char[]> lines = new ArrayList<>();
+        final ArrayList<VMT.Lex.Command> commands = new ArrayList<>();
+        String skipped;
+
+        Input(String name, File file) {
+            this.name = name;
+            this.file = file;
+
+            VMT.Lex lex = new VMT.Lex(file);
+            try {
+                while (lex.hasMoreCommands()) {
+                    lex.advance();
+                    commands.add(new VMT.Lex.Command().set(lex.command()));
+                }
+            } catch (IllegalArgumentException e) {
+                skipped = e.getMessage();
+            }
+            for (VMT.Lex.Command cmd : commands) {
+                lines.add(cmd.toString().toCharArray());
+            }
+        }
+    }
+
+    /**
+     * A stage being measured. run() makes one pass over the input and
+     * returns a value that depends on the work, so it cannot be optimized away.
+     */
+    interface Stage {
+        long run(Input input);
+    }
+
+    /**
+     * A channel that drops everything written to it.
+     */
+    static class NullChannel implements WritableByteChannel {
+        long written;
+
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            written += n;
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    static long lex(Input input) {
+        VMT.Lex lex = new VMT.Lex(input.file);
+        long n = 0;
+        while (lex.hasMoreCommands()) {
+            lex.advance();
+            n += lex.command().index;
+        }
+        return n;
+    }
+
+    static long decode(Input input) {
+        VMT.Lex.NamePool names = new VMT.Lex.NamePool();
+        VMT.Lex.Command cmd = new VMT.Lex.Command();
+        long n = 0;
+        for (char[] line : input.lines) {
+            VMT.Lex.decode(line, line.length, names, cmd);
+            n += cmd.index;
+        }
+        return n;
+    }
+
+    static long emit(Input input) {
+        NullChannel channel = new NullChannel();
+        VMT.Writer writer = new VMT.Writer(channel);
+        writer.setFileName(input.file);
+        for (VMT.Lex.Command cmd : input.commands) {
+            int type = cmd.op.type;
+            if (type == VMT.Lex.ARITHMETIC) {
+                writer.writeArithmetic(cmd.op);
+            } else if (type == VMT.Lex.PUSH || type == VMT.Lex.POP) {
+                writer.writePushPop(type, cmd.segment, cmd.index);
+            }
+        }
+        writer.close();
+        return channel.written;
+    }
+
+    /**
+     * Runs a stage for one iteration.
+     * @param stage the stage
+     * @param input the input
+     * @param result the passes, the nanoseconds, the bytes allocated and the sink, in that order
+     */
+    static void iteration(Stage stage, Input input, long[] result) {
+        long sink = 0;
+        long ops = 0;
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long end = start + ITERATION_NANOS;
+        long now;
+        do {
+            sink += stage.run(input);
+            ops++;
+        } while ((now = System.nanoTime()) < end);
+        result[0] = ops;
+        result[1] = now - start;
+        result[2] = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+        result[3] += sink;
+    }
+
+    /**
+     * Warms a stage up, measures it and prints one report line.
+     * @param stageName the name of the stage
+     * @param stage the stage
+     * @param input the input
+     */
+    static void measure(String stageName, Stage stage, Input input) {
+        long[] result = new long[4];
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(stage, input, result);
+        }
+
+        double[] opsPerSecond = new double[ITERATIONS];
+        double[] bytesPerOp = new double[ITERATIONS];
+        double[] allocPerSecond = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            iteration(stage, input, result);
+            double seconds = result[1] / 1e9;
+            opsPerSecond[i] = result[0] / seconds;
+            bytesPerOp[i] = (double) result[2] / result[0];
+            allocPerSecond[i] = result[2] / seconds / (1 << 20);
+        }
+
+        double ops = mean(opsPerSecond);
+        System.out.printf("%-6s %-28s %12.2f +- %9.2f ops/s %14.0f cmds/s %14.0f B/op %10.1f MB/s alloc   (%d)%n",
+                stageName, input.name, ops, error(opsPerSecond), ops * input.commands.size(),
+                mean(bytesPerOp), mean(allocPerSecond), result[3] & 0xF);
+    }
+
+    /**
+     * @param samples the samples
+     * @return their mean
+     */
+    static double mean(double[] samples) {
+        double sum = 0;
+        for (double x : samples) {
+            sum += x;
+        }
+        return sum / samples.length;
+    }
+
+    /**
+     * @param samples ITERATIONS samples
+     * @return the half width of the 99.9% confidence interval of their mean
+     */
+    static double error(double[] samples) {
+        double mean = mean(samples);
+        double squares = 0;
+        for (double x : samples) {
+            squares += (x - mean) * (x - mean);
+        }
+        return T_999 * Math.sqrt(squares / (samples.length - 1) / samples.length);
+    }
+
+    /**
+     * Measures one stage on one input in this JVM.
+     * @param stageName lex, decode or emit
+     * @param name the name of the input in the report
+     * @param file the input
+     */
+    static void runFork(String stageName, String name, File file) {
+        Stage stage;
+        switch (stageName) {
+            case "lex":
+                stage = VMTBench::lex;
+                break;
+            case "decode":
+                stage = VMTBench::decode;
+                break;
+            case "emit":
+                stage = VMTBench::emit;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown stage " + stageName);
+        }
+        Input input = new Input(name, file);
+        if (input.skipped != null) {
+            System.out.println("skip   " + stageName + " " + name + ": " + input.skipped);
+            return;
+        }
+        measure(stageName, stage, input);
+    }
+
+    /**
+     * Measures one stage on one input in a new JVM, started with the same
+     * class path and JVM options as this one.
+     * @param stageName lex, decode or emit
+     * @param name the name of the input in the report
+     * @param file the input
+     */
+    static void fork(String stageName, String name, File file) throws IOException {
+        ArrayList<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), "VMTBench",
+                "-fork", stageName, name, file.getPath()));
+        try {
+            int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+            if (exit != 0) {
+                System.out.println("fail   " + stageName + " " + name + ": exit code " + exit);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while measuring " + name);
+        }
+    }
+
+    /**
+     * Generates synthetic inputs: the mixed command mix at every scale,
+     * and every other mix at the middle scale.
+     * @param dir the directory to write to
+     * @param inputs the inputs by name, to add to
+     */
+    static void synthetic(File dir, Map<String, File> inputs) throws IOException {
+        for (int lines : SCALES) {
+            inputs.put("synthetic mixed " + lines, generate(dir, VMGen.Mix.MIXED, lines));
+        }
+        for (VMGen.Mix mix : VMGen.Mix.values()) {
+            if (mix != VMGen.Mix.MIXED) {
+                String name = "synthetic " + mix.name().toLowerCase() + " " + SCALES[1];
+                inputs.put(name, generate(dir, mix, SCALES[1]));
+            }
+        }
+    }
+
+    /**
+     * Writes a generated program to a file.
+     * @param dir the directory to write to
+     * @param mix the command mix
+     * @param lines the number of lines
+     * @return the file
+     */
+    static File generate(File dir, VMGen.Mix mix, long lines) throws IOException {
+        File f = new File(dir, mix.name().toLowerCase() + lines + ".vm");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(f), 1 << 16)) {
+            new VMGen(SEED, mix, true, out).generate(lines);
+        }
+        return f;
+    }
+
+    /**
+     * Translates generated inputs from 1K to 10M lines and reports the peak heap use of each,
+     * which should stay flat as the input grows.
+     * @param dir the directory to write to
+     */
+    static void memoryScaling(File dir) throws IOException {
+        for (long lines = 1_000; lines <= 10_000_000; lines *= 10) {
+            File f = generate(dir, VMGen.Mix.MIXED, lines);
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+
+            long start = System.nanoTime();
+            NullChannel channel = new NullChannel();
+            VMT.Writer writer = new VMT.Writer(channel);
+            VMT.translate(f, writer);
+            writer.close();
+            long nanos = System.nanoTime() - start;
+
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            System.out.printf("memory %,12d lines %,14d bytes in %,14d bytes out %8d ms %,14d B peak heap%n",
+                    lines, f.length(), channel.written, nanos / 1_000_000, peak);
+            f.delete();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 4 && args[0].equals("-fork")) {
+            runFork(args[1], args[2], new File(args[3]));
+            return;
+        }
+        boolean memory = args.length > 0 && args[0].equals("-memory");
+        int rest = memory ? 1 : 0;
+        File root = new File(args.length > rest ? args[rest] : "../../../official-files");
+        if (!root.isDirectory()) {
+            System.out.println("Usage: java VMTBench [-memory] [official-files directory]");
+            return;
+        }
+
+        File tmp = Files.createTempDirectory("vmtbench").toFile();
+        if (memory) {
+            memoryScaling(tmp);
+            tmp.delete();
+            return;
+        }
+
+        Map<String, File> inputs = new LinkedHashMap<>();
+        for (String dir : new String[] {"projects/7/StackArithmetic", "projects/7/MemoryAccess"}) {
+            File[] tests = new File(root, dir).listFiles();
+            if (tests != null) {
+                for (File test : tests) {
+                    for (File f : VMT.getVMFiles(test)) {
+                        inputs.put(f.getName(), f);
+                    }
+                }
+            }
+        }
+        for (File f : VMT.getVMFiles(new File(root, "tools/OS"))) {
+            inputs.put("OS/" + f.getName(), f);
+        }
+
+        synthetic(tmp, inputs);
+
+        for (Map.Entry<String, File> input : inputs.entrySet()) {
+            for (String stage : STAGES) {
+                fork(stage, input.getKey(), input.getValue());
+            }
+        }
+
+        for (File f : tmp.listFiles()) {
+            f.delete();
+        }
+        tmp.delete();
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Ranks the functions of a program by the execution counters that VMT -profile builds in.
+ *
+ * With -script, writes a CPU emulator test script next to the counter map: it runs the
+ * program for a number of clock cycles and then outputs every counter cell. After running
+ * the script on the emulator, the map and the output file give the report: how many times
+ * every function, and every label with -profile labels, was entered, hottest first.
+ *
+ * With -where, looks ROM addresses up in the source map that VMT -sourcemap writes,
+ * e.g. the PC where a program hangs, and prints the .vm line and function of each.
+ *
+ * Usage: java VMTProf -script program.counters program.asm|program.hack [cycles]
+ *        java VMTProf program.counters program.prof.out
+ *        java VMTProf -where program.srcmap address...
+ */
+public class VMTProf {
+
+    private static final long DEFAULT_CYCLES = 10_000_000L;
+    // The emulator takes only a few columns in one output-list command
+    private static final int COLUMNS = 8;
+
+    /**
+     * One counter of the map, and its count once the emulator output is read.
+     */
+    static class Counter {
+        final int address;
+        final String kind;
+        final String name;
+        long count;
+
+        Counter(int address, String kind, String name) {
+            this.address = address;
+            this.kind = kind;
+            this.name = name;
+        }
+    }
+
+    /**
+     * Reads a counter map written by VMT.
+     * @param map the map file
+     * @return the counters, in address order
+     * @throws IOException if the map cannot be read
+     */
+    static ArrayList<Counter> readMap(File map) throws IOException {
+        ArrayList<Counter> counters = new ArrayList<>();
+        for (String line : Files.readAllLines(map.toPath(), StandardCharsets.US_ASCII)) {
+            String[] fields = line.trim().split(" ", 3);
+            if (fields.length != 3) {
+                continue;
+            }
+            counters.add(new Counter(Integer.parseInt(fields[0]), fields[1], fields[2]));
+        }
+        return counters;
+    }
+
+    /**
+     * Writes the test script that runs the program and outputs the low and high word of every counter.
+     * @param script the script file, which names the output file after itself
+     * @param program the .asm or .hack file, in the directory of the script
+     * @param counters the counters
+     * @param cycles how many clock cycles to run
+     * @throws IOException if the script cannot be written
+     */
+    static void writeScript(File script, File program, ArrayList<Counter> counters, long cycles) throws IOException {
+        String name = script.getName();
+        StringBuilder tst = new StringBuilder();
+        tst.append("load ").append(program.getName()).append(",\n");
+        tst.append("output-file ").append(name, 0, name.lastIndexOf('.')).append(".out,\n");
+        tst.append("repeat ").append(cycles).append(" {\n    ticktock;\n}\n");
+        for (int i = 0; i < 2 * counters.size(); i += COLUMNS) {
+            tst.append("output-list");
+            for (int j = i; j < Math.min(i + COLUMNS, 2 * counters.size()); j++) {
+                tst.append(" RAM[").append(counters.get(j / 2).address + j % 2).append("]%D1.6.1");
+            }
+            tst.append(";\noutput;\n");
+        }
+        Files.write(script.toPath(), tst.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Reads the counts from the emulator output: every value line holds the next cells,
+     * low word then high word, in the order of the script.
+     * @param output the output file of the script
+     * @param counters the counters, which receive their counts
+     * @throws IOException if the output cannot be read
+     */
+    static void readCounts(File output, ArrayList<Counter> counters) throws IOException {
+        int cell = 0;
+        for (String line : Files.readAllLines(output.toPath(), StandardCharsets.US_ASCII)) {
+            if (line.indexOf('[') != -1) {
+                continue;
+            }
+            for (String field : line.split("\\|")) {
+                field = field.trim();
+                if (field.isEmpty() || cell == 2 * counters.size()) {
+                    continue;
+                }
+                // The emulator prints signed words, the counter is 32 bits unsigned
+                long word = Integer.parseInt(field) & 0xFFFF;
+                counters.get(cell / 2).count += cell % 2 == 0 ? word : word << 16;
+                cell++;
+            }
+        }
+        if (cell != 2 * counters.size()) {
+            throw new IllegalArgumentException("The output has " + cell + " cells, the map needs " + 2 * counters.size());
+        }
+    }
+
+    /**
+     * Prints the counters of one kind, hottest first.
+     * @param counters the counters
+     * @param kind "function" or "label"
+     */
+    static void report(ArrayList<Counter> counters, String kind) {
+        ArrayList<Counter> ranked = new ArrayList<>();
+        long total = 0;
+        for (Counter c : counters) {
+            if (c.kind.equals(kind)) {
+                ranked.add(c);
+                total += c.count;
+            }
+        }
+        if (ranked.isEmpty()) {
+            return;
+        }
+        ranked.sort((a, b) -> Long.compare(b.count, a.count));
+        System.out.println(ranked.size() + " " + kind + "s, entered " + total + " times:");
+        for (int i = 0; i < ranked.size() && ranked.get(i).count > 0; i++) {
+            Counter c = ranked.get(i);
+            System.out.println(String.format(Locale.ROOT, "%5d %12d %6.2f%%  %s",
+                    i + 1, c.count, 100.0 * c.count / total, c.name));
+        }
+        System.out.println();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 3 && args[0].equals("-script")) {
+            File map = new File(args[1]);
+            File script = VMT.withExtension(map, ".prof.tst");
+            long cycles = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_CYCLES;
+            writeScript(script, new File(args[2]), readMap(map), cycles);
+            System.out.println("File created: " + script);
+        } else if (args.length >= 3 && args[0].equals("-where")) {
+            byte[] map = Files.readAllBytes(new File(args[1]).toPath());
+            for (int i = 2; i < args.length; i++) {
+                String source = VMT.SourceMap.find(map, Integer.parseInt(args[i]));
+                System.out.println(args[i] + " " + (source == null ? "no VM command" : source));
+            }
+        } else if (args.length == 2) {
+            ArrayList<Counter> counters = readMap(new File(args[0]));
+            readCounts(new File(args[1]), counters);
+            report(counters, "function");
+            report(counters, "label");
+        } else {
+            System.out.println("Usage: java VMTProf -script program.counters program.asm|program.hack [cycles]");
+            System.out.println("       java VMTProf program.counters program.prof.out");
+            System.out.println("       java VMTProf -where program.srcmap address...");
+        }
+    }
+}
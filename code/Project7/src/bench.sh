@@ -0,0 +1,22 @@
+#!/bin/bash
+
+WORK=$(mktemp -d /tmp/vmt-bench-XXXXXX)
+
+# Compile VMT and its benchmarks, away from the class files kept in this directory
+echo "Compiling VMT.java, VMGen.java and VMTBench.java..."
+javac -d $WORK/classes VMT.java VMGen.java VMTBench.java
+
+# Check if compilation was successful
+if [ $? -ne 0 ]; then
+    echo "Compilation failed. Exiting..."
+    rm -rf $WORK
+    exit 1
+fi
+
+# Run the benchmarks on the course samples, the OS and synthetic inputs
+java -cp $WORK/classes VMTBench ../../../official-files
+
+# Check that memory use stays flat from 1K to 10M lines
+java -cp $WORK/classes VMTBench -memory ../../../official-files
+
+rm -rf $WORK
@@ -0,0 +1,149 @@
+#!/bin/bash
+
+# Translates every test program of projects 7 and 8, and the cases below, under every profile
+# and optimization, and runs its test script on the CPU emulator. With -hack, the ROM image is also compared
+# with the one the official Assembler makes from the .asm output.
+# Then translates the project 12 tests with the whole OS, where the transforms that work on
+# functions and calls have real code to work on, and also checks the totals of the -stats report.
+
+OFFICIAL=../../../official-files
+EMULATOR=$OFFICIAL/tools/CPUEmulator.sh
+ASSEMBLER=$OFFICIAL/tools/Assembler.sh
+# No dot in the path, the Assembler takes everything after the first one as the extension
+WORK=$(mktemp -d /tmp/vmt-test-XXXXXX)
+OPTIONS=("" "-Os" "-O1" "-O2" "-tos" "-fuse" "-tailcall" "-inline" "-intrinsics" "-hack -asm")
+OS_TESTS=(MathTest ArrayTest MemoryTest)
+OS_OPTIONS=("-O2" "-Os" "-O1 -tailcall -intrinsics" "-O1 -inline -dce -keep Memory.poke")
+# The OS takes millions of cycles to initialize
+OS_CYCLES=20000000
+
+# Compile VMT, away from the class files kept in this directory
+echo "Compiling VMT.java..."
+javac -d $WORK/classes VMT.java
+
+# Check if compilation was successful
+if [ $? -ne 0 ]; then
+    echo "Compilation failed. Exiting..."
+    rm -rf $WORK
+    exit 1
+fi
+
+# The emulator rewrites its settings when it runs, keep them as they are
+SETTINGS="$OFFICIAL/tools/bin/CPU Emulator.dat"
+cp "$SETTINGS" $WORK/settings.dat
+
+# A class named VMT: its file prefix is the one the bootstrap labels used to have
+CASES=$WORK/cases
+mkdir -p $CASES/LabelPrefix
+printf 'function Sys.init 0\ncall VMT.f 0\npop temp 0\nlabel END\ngoto END\n' > $CASES/LabelPrefix/Sys.vm
+printf 'function VMT.f 0\ncall VMT.g 0\nreturn\nfunction VMT.g 0\npush constant 7\npop static 0\npush constant 0\nreturn\n' > $CASES/LabelPrefix/VMT.vm
+printf 'load LabelPrefix.asm,\noutput-file LabelPrefix.out,\ncompare-to LabelPrefix.cmp,\noutput-list RAM[0]%%D1.6.1 RAM[16]%%D1.6.1;\nrepeat 1000 {\n    ticktock;\n}\noutput;\n' > $CASES/LabelPrefix/LabelPrefix.tst
+printf '| RAM[0] |RAM[16] |\n|    261 |      7 |\n' > $CASES/LabelPrefix/LabelPrefix.cmp
+
+failed=0
+for option in "${OPTIONS[@]}"; do
+    echo "---------------------------------------"
+    echo "Options: ${option:-none}"
+    echo "---------------------------------------"
+    for test in $OFFICIAL/projects/7/*/*/*.tst $OFFICIAL/projects/8/*/*/*.tst $CASES/*/*.tst; do
+        name=$(basename $test .tst)
+        # The VME scripts run the .vm files on the VM emulator
+        if [[ $name == *VME ]]; then
+            continue
+        fi
+        dir=$WORK/$name
+        rm -rf $dir
+        cp -r $(dirname $test) $dir
+
+        java -cp $WORK/classes VMT $option $dir > $dir/vmt.log 2>&1
+        if [ $? -ne 0 ]; then
+            echo "$name: VMT failed"
+            cat $dir/vmt.log
+            failed=$((failed + 1))
+            continue
+        fi
+
+        result=$(sh $EMULATOR $dir/$name.tst 2>&1 | tail -1)
+        if [[ $result != *"Comparison ended successfully"* ]]; then
+            echo "$name: $result"
+            failed=$((failed + 1))
+            continue
+        fi
+
+        if [[ $option == *-hack* ]]; then
+            mv $dir/$name.hack $dir/$name.vmt.hack
+            sh $ASSEMBLER $dir/$name.asm > /dev/null 2>&1
+            if ! cmp -s $dir/$name.hack $dir/$name.vmt.hack; then
+                echo "$name: the .hack differs from the Assembler's"
+                failed=$((failed + 1))
+                continue
+            fi
+        fi
+        echo "$name: passed"
+    done
+done
+
+# The project 12 scripts run on the VM emulator, the same steps run on the CPU emulator
+for test in "${OS_TESTS[@]}"; do
+    src=$OFFICIAL/projects/12/$test
+    mkdir -p $CASES/$test
+    cp $src/Main.jack $src/$test.cmp $CASES/$test/
+    sh $OFFICIAL/tools/JackCompiler.sh $CASES/$test > /dev/null 2>&1
+    cp $OFFICIAL/tools/OS/*.vm $CASES/$test/
+    sed -e "s/^load,/load $test.asm,/" -e "s/vmstep/ticktock/" -e "s/repeat [0-9]*/repeat $OS_CYCLES/" \
+        $src/$test.tst > $CASES/$test/$test.tst
+done
+
+for option in "${OS_OPTIONS[@]}"; do
+    echo "---------------------------------------"
+    echo "Project 12 with the OS, options: $option -hack -asm -stats"
+    echo "---------------------------------------"
+    for name in "${OS_TESTS[@]}"; do
+        dir=$WORK/$name
+        rm -rf $dir
+        cp -r $CASES/$name $dir
+
+        java -cp $WORK/classes VMT $option -hack -asm -stats $dir/stats.json $dir > $dir/vmt.log 2>&1
+        if [ $? -ne 0 ]; then
+            echo "$name: VMT failed"
+            cat $dir/vmt.log
+            failed=$((failed + 1))
+            continue
+        fi
+
+        result=$(sh $EMULATOR $dir/$name.tst 2>&1 | tail -1)
+        if [[ $result != *"Comparison ended successfully"* ]]; then
+            echo "$name: $result"
+            failed=$((failed + 1))
+            continue
+        fi
+
+        mv $dir/$name.hack $dir/$name.vmt.hack
+        sh $ASSEMBLER $dir/$name.asm > /dev/null 2>&1
+        if ! cmp -s $dir/$name.hack $dir/$name.vmt.hack; then
+            echo "$name: the .hack differs from the Assembler's"
+            failed=$((failed + 1))
+            continue
+        fi
+
+        # The total comes last in the report
+        optimized=$(grep '"optimizedInstructions"' $dir/stats.json | tail -1 | grep -o '[0-9]*')
+        shared=$(grep '"sharedInstructions"' $dir/stats.json | grep -o '[0-9]*')
+        words=$(grep '"romWords"' $dir/stats.json | grep -o '[0-9]*')
+        if [ $((optimized + shared)) -ne $words ]; then
+            echo "$name: $optimized optimized and $shared shared instructions, but $words words of ROM"
+            failed=$((failed + 1))
+            continue
+        fi
+        echo "$name: passed"
+    done
+done
+
+cp $WORK/settings.dat "$SETTINGS"
+rm -rf $WORK
+
+if [ $failed -ne 0 ]; then
+    echo "$failed tests failed."
+    exit 1
+fi
+echo "✅ All tests passed."